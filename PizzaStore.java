@@ -17,13 +17,56 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.lang.Math;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,62 +75,369 @@ import java.lang.Math;
  */
 public class PizzaStore {
 
-   // reference to physical database connection.
+   // reference to physical database connection, opened on first use.
    private Connection _connection = null;
 
+   // connection parameters, kept so the connection can be opened lazily
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // circuit breaker and counters of the database this handle points at
+   private final Health _health;
+
+   // databases holding FoodOrder/ItemsInOrder, partitioned by store; just
+   // this one unless -Dpizzastore.shards lists JDBC URLs
+   private final String[] _shardUrls;
+   private final PizzaStore[] _shards;
+
+   // read-only copies of this database that take reads off it, from
+   // -Dpizzastore.replicas (main database) or -Dpizzastore.shard.<k>.replicas
+   private final String[] _replicaUrls;
+   private final PizzaStore[] _replicas;
+   private final AtomicInteger _nextReplica = new AtomicInteger();
+
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
+   // This variable can be global for convenience. The load generator
+   // scripts it per thread, see ScriptedReader.
+   static BufferedReader in = new ScriptedReader(
                                 new InputStreamReader(System.in));
 
-   //OrderCounter:
-   static int orderCounter;
+   //OrderCounters: next free orderID per shard, 0 until first read from the
+   // database. Shard k only hands out IDs with orderID mod shardCount == k,
+   // which is how an orderID is routed back to its shard.
+   static int[] orderCounters;
+
+   // orderID most recently handed to this thread, lets simulated customers
+   // follow up on their own orders
+   static final ThreadLocal<Integer> lastOrderID = new ThreadLocal<Integer>();
+
+   // last error an action on this thread reported, see reportError
+   static final ThreadLocal<Exception> lastError = new ThreadLocal<Exception>();
+
+   // the session (interactive or simulated user) running on this thread
+   static final ThreadLocal<Session> session = ThreadLocal.withInitial(Session::new);
+
+   // read-through caches, filled in the background at startup. Until a cache
+   // is warm every lookup goes to the database.
+   // rows expire so other clients' price and store changes show up too
+   static final TableCache menuCache = new TableCache(config("menuCacheMillis", 10000));
+   static final TableCache storeCache = new TableCache(config("storeCacheMillis", 60000));
+   // roles decide access, so other clients' changes must show up quickly
+   static final TableCache userCache = new TableCache(config("roleCacheMillis", 2000));
+
+   // placed orders waiting for a driver, rebuilt in the background at startup
+   static final DispatchQueues dispatch = new DispatchQueues();
+
+   // limits how many order writes and staff reports reach the database at once
+   static final AdmissionController orderAdmission = new AdmissionController("orders", 16, 4);
+   static final AdmissionController reportAdmission = new AdmissionController("reports", 4, 0);
+
+   // stock per store and item, loaded at startup and written back in the background
+   static final Inventory inventory = new Inventory();
+
+   // guards the one-time loading of the JDBC driver
+   private static boolean driverLoaded = false;
 
    /**
-    * Creates a new instance of PizzaStore
+    * Creates a new instance of PizzaStore. No connection is made until the
+    * first statement is issued (or {@link #getConnection()} is called).
+    * Setting -Dpizzastore.url (and -Dpizzastore.driver) points it at any
+    * other JDBC database instead, e.g. an embedded stand-in for load tests.
     *
-    * @param hostname the MySQL or PostgreSQL server hostname
-    * @param database the name of the database
-    * @param username the user name used to login to the database
-    * @param password the user login password
-    * @throws java.sql.SQLException when failed to make a connection.
+    * @param dbname the name of the database
+    * @param dbport the PostgreSQL server port on localhost
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
     */
-   public PizzaStore(String dbname, String dbport, String user, String passwd) throws SQLException {
+   public PizzaStore(String dbname, String dbport, String user, String passwd) {
+      this(config("url", "jdbc:postgresql://localhost:" + dbport + "/" + dbname), user, passwd,
+           urls(config("shards", "")), urls(config("replicas", "")));
+   }//end PizzaStore
 
-      System.out.print("Connecting to database...");
-      try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
+   private PizzaStore(String url, String user, String passwd, String[] shardUrls, String[] replicaUrls) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._health = Health.forDatabase(url);
+      this._shardUrls = shardUrls;
+      if (shardUrls.length == 0) {
+         this._shards = new PizzaStore[] { this };
+      } else {
+         this._shards = new PizzaStore[shardUrls.length];
+         for (int i = 0; i < shardUrls.length; i++)
+            this._shards[i] = new PizzaStore(shardUrls[i], user, passwd, new String[0],
+                                             urls(config("shard." + i + ".replicas", "")));
+      }
+      this._replicaUrls = replicaUrls;
+      this._replicas = new PizzaStore[replicaUrls.length];
+      for (int i = 0; i < replicaUrls.length; i++)
+         this._replicas[i] = new PizzaStore(replicaUrls[i], user, passwd, new String[0], new String[0]);
+   }//end PizzaStore
+
+   private static String[] urls(String list) {
+      if (list.trim().isEmpty()) return new String[0];
+      String[] urls = list.split(",");
+      for (int i = 0; i < urls.length; i++)
+         urls[i] = urls[i].trim();
+      return urls;
+   }//end urls
+
+   /**
+    * Returns another handle on the same database(s) with its own connections,
+    * so background work does not queue up behind the interactive session.
+    */
+   public PizzaStore newHandle() {
+      return new PizzaStore(this._url, this._user, this._passwd, this._shardUrls, this._replicaUrls);
+   }//end newHandle
+
+   /**
+    * @return number of databases the order tables are spread over
+    */
+   public int shardCount() {
+      return _shards.length;
+   }//end shardCount
+
+   /**
+    * Shard owning a store's orders: -Dpizzastore.shardMap entries of the form
+    * storeID:shard win, otherwise storeID mod shardCount.
+    */
+   public int shardOfStore(int storeID) {
+      if (_shards.length == 1) return 0;
+      for (String entry : config("shardMap", "").split(",")) {
+         String[] kv = entry.split(":");
+         if (kv.length == 2 && Integer.parseInt(kv[0].trim()) == storeID)
+            return Integer.parseInt(kv[1].trim());
+      }
+      return Math.floorMod(storeID, _shards.length);
+   }//end shardOfStore
+
+   /**
+    * @return handle on the database holding a store's orders
+    */
+   public PizzaStore forStore(int storeID) {
+      return _shards[shardOfStore(storeID)];
+   }//end forStore
+
+   /**
+    * @return handle on the database an orderID was handed out by
+    */
+   public PizzaStore forOrder(int orderID) {
+      return _shards[Math.floorMod(orderID, _shards.length)];
+   }//end forOrder
+
+   /**
+    * Work run against one shard by {@link #fanOut}.
+    */
+   interface ShardWork<T> {
+      T run(PizzaStore shard) throws SQLException;
+   }
+
+   // runs the per-shard parts of cross-shard queries side by side
+   private static final ExecutorService fanOutPool = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "shard-fan-out");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   /**
+    * Runs work on every shard in parallel.
+    * @return the per-shard results, in shard order
+    * @throws java.sql.SQLException the first failure of any shard
+    */
+   public <T> List<T> fanOut(final ShardWork<T> work) throws SQLException {
+      List<T> results = new ArrayList<T>();
+      if (_shards.length == 1) {
+         results.add(work.run(_shards[0]));
+         return results;
+      }
+      List<CompletableFuture<T>> parts = new ArrayList<CompletableFuture<T>>();
+      // the parts still belong to the caller's session (read-your-writes, trace)
+      final Session caller = session.get();
+      for (final PizzaStore shard : _shards) {
+         parts.add(CompletableFuture.supplyAsync(() -> {
+            session.set(caller);
+            try {
+               return work.run(shard);
+            } catch (SQLException e) {
+               throw new CompletionException(e);
+            } finally {
+               session.remove();
+            }
+         }, fanOutPool));
+      }
+      for (CompletableFuture<T> part : parts) {
+         try {
+            results.add(part.join());
+         } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw e;
+         }
+      }
+      return results;
+   }//end fanOut
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
+   /**
+    * Runs a query about one order on its shard. Orders that predate sharding
+    * don't follow the orderID rule, so on a miss the other shards are asked.
+    */
+   public List<List<String>> executeForOrder(int orderID, final String query) throws SQLException {
+      List<List<String>> res = forOrder(orderID).executeQueryAndReturnResult(query);
+      if (!res.isEmpty() || _shards.length == 1) return res;
+      for (List<List<String>> part : fanOut(shard -> shard.executeQueryAndReturnResult(query)))
+         if (!part.isEmpty()) return part;
+      return res;
+   }//end executeForOrder
+
+   /**
+    * Runs an update of one order on its shard, with the same fallback as
+    * {@link #executeForOrder}.
+    * @return the number of rows affected
+    */
+   public int executeUpdateForOrder(int orderID, final String sql) throws SQLException {
+      int rows = forOrder(orderID).executeUpdate(sql);
+      if (rows > 0 || _shards.length == 1) return rows;
+      for (int part : fanOut(shard -> shard == forOrder(orderID) ? 0 : shard.executeUpdate(sql)))
+         rows += part;
+      return rows;
+   }//end executeUpdateForOrder
+
+   /**
+    * Merges per-shard results by a timestamp column.
+    * @param limit maximum number of rows to keep, or -1 for all
+    */
+   public static List<List<String>> mergeByTimestamp(List<List<List<String>>> parts, final int col, final boolean newestFirst, int limit) {
+      List<List<String>> merged = new ArrayList<List<String>>();
+      for (List<List<String>> part : parts)
+         merged.addAll(part);
+      merged.sort(new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            int c = Timestamp.valueOf(a.get(col).trim()).compareTo(Timestamp.valueOf(b.get(col).trim()));
+            return newestFirst ? -c : c;
+         }
+      });
+      return limit >= 0 && merged.size() > limit ? merged.subList(0, limit) : merged;
+   }//end mergeByTimestamp
+
+   /**
+    * Reads a -Dpizzastore.&lt;key&gt; setting.
+    */
+   static String config(String key, String def) {
+      return System.getProperty("pizzastore." + key, def);
+   }//end config
+
+   static int config(String key, int def) {
+      return Integer.parseInt(config(key, String.valueOf(def)));
+   }//end config
+
+   /**
+    * Loads the JDBC driver (postgres unless configured) once per process.
+    */
+   static synchronized void loadDriver() throws SQLException {
+      if (driverLoaded) return;
+      // don't let an unreachable server hang the connect
+      DriverManager.setLoginTimeout(config("timeout.connect", 10));
+      try {
+         Class.forName (config("driver", "org.postgresql.Driver")).newInstance ();
+         driverLoaded = true;
       }catch (Exception e){
-         System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
-         System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
-      }//end catch
+         throw new SQLException("Unable to load JDBC driver: " + e.getMessage());
+      }
+   }//end loadDriver
 
-   }//end PizzaStore
+   /**
+    * Returns the physical connection, opening it on first use.
+    *
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public synchronized Connection getConnection() throws SQLException {
+      if (this._connection == null){
+         loadDriver();
+         try{
+            // obtain a physical connection
+            Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+            try {
+               setServerTimeout(conn);
+            } catch (SQLException e) {
+               conn.close();
+               throw e;
+            }
+            this._connection = conn;
+         }catch (SQLException e){
+            System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
+            System.err.println("Make sure you started postgres on this machine");
+            throw e;
+         }//end catch
+      }//end if
+      return this._connection;
+   }//end getConnection
 
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql) throws SQLException {
+      return execute(QueryClass.WRITE, sql, stmt -> {
+         // issues the update instruction
+         return stmt.executeUpdate (sql);
+      });
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Runs work as one transaction on this database's connection, committed
+    * when the work returns and rolled back when it throws. Only writes and
+    * executeQueryOnPrimary are sure to run inside it, other reads may be
+    * sent to a replica. Statements inside are not retried one by one; a
+    * serialization failure or deadlock rolls back and reruns the whole work,
+    * so the work must be safe to run again.
+    *
+    * @param work the statements to run, given this handle
+    * @return what the work returned
+    * @throws java.sql.SQLException when the work or the commit failed
+    */
+   public <T> T executeInTransaction (ShardWork<T> work) throws SQLException {
+      int maxAttempts = config("retry.attempts", 3);
+      for (int attempt = 1; ; attempt++) {
+         try {
+            return runTransaction(work);
+         } catch (SQLException e) {
+            if (attempt >= maxAttempts || Failure.of(e) != Failure.SERIALIZATION) throw e;
+            _health.retries.incrementAndGet();
+            backoff(attempt);
+         }
+      }
+   }//end executeInTransaction
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   private <T> T runTransaction (ShardWork<T> work) throws SQLException {
+      Connection conn = getConnection();
+      conn.setAutoCommit(false);
+      boolean done = false;
+      try {
+         T result = work.run(this);
+         long started = System.nanoTime();
+         try {
+            conn.commit();
+            done = true;
+         } finally {
+            Trace.record(_health.name, QueryClass.WRITE, "COMMIT", started, done);
+         }
+         return result;
+      } finally {
+         if (!done) {
+            long started = System.nanoTime();
+            boolean ok = false;
+            try { conn.rollback(); ok = true; } catch (SQLException e) { }
+            Trace.record(_health.name, QueryClass.WRITE, "ROLLBACK", started, ok);
+         }
+         try { conn.setAutoCommit(true); } catch (SQLException e) { }
+      }
+   }//end runTransaction
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -99,37 +449,35 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      return execute(QueryClass.REPORT, query, stmt -> {
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
-      return rowCount;
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (stmt.next(rs)){
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (stmt.getString (rs, i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         return rowCount;
+      });
    }//end executeQuery
 
    /**
@@ -142,9 +490,96 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      return executeQueryAndReturnResult(QueryClass.READ, query);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Same as {@link #executeQueryAndReturnResult(String)}, with the timeout
+    * and retry rules of the given query class.
+    */
+   public List<List<String>> executeQueryAndReturnResult (QueryClass qc, String query) throws SQLException {
+      return execute(qc, query, stmt -> readAll(stmt, query));
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Same as {@link #executeQueryAndReturnResult(QueryClass, String)}, but
+    * never served by a replica. For reads that must see every committed
+    * write, such as the current maximum orderID.
+    */
+   public List<List<String>> executeQueryOnPrimary (QueryClass qc, String query) throws SQLException {
+      return executeLocal(qc, query, stmt -> readAll(stmt, query));
+   }//end executeQueryOnPrimary
+
+   /**
+    * Receives the rows of {@link #executeQueryAndStream} one at a time.
+    */
+   interface RowHandler {
+      void row(String[] row) throws IOException;
+   }
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method fetches the rows in batches of -Dpizzastore.fetchSize through an
+    * explicit cursor (DECLARE/FETCH, which works with any Postgres driver,
+    * the bundled pg73 one has no setFetchSize) and hands them to the handler
+    * one at a time, so the result is never held in memory. The row array is
+    * reused between calls.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query, or a
+    *         PartialResultException when it failed midway
+    */
+   public int executeQueryAndStream (QueryClass qc, String query, RowHandler handler) throws SQLException {
+      return executeQueriesAndStream(qc, new String[] { query }, new RowHandler[] { handler });
+   }//end executeQueryAndStream
+
+   /**
+    * Same as {@link #executeQueryAndStream} for several queries in a row,
+    * the rows of queries[i] going to handlers[i]. They all run in one
+    * REPEATABLE READ transaction, so they read the same snapshot of the
+    * data.
+    *
+    * @return the number of rows returned by all queries
+    */
+   public int executeQueriesAndStream (QueryClass qc, final String[] queries, final RowHandler[] handlers) throws SQLException {
+      return execute(qc, String.join(" ", queries), stmt -> {
+         int fetchSize = config("fetchSize", 1000);
+         stmt.beginTransaction();
+         stmt.execute ("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         String[] row = null;
+         int rowCount = 0;
+         try {
+            for (int q = 0; q < queries.length; q++) {
+               // issues the query instruction
+               stmt.execute ("DECLARE pizzastore_stream CURSOR FOR " + queries[q].trim().replaceAll(";+$", ""));
+               int fetched;
+               do {
+                  ResultSet rs = stmt.executeQuery ("FETCH FORWARD " + fetchSize + " FROM pizzastore_stream");
+                  int numCol = rs.getMetaData ().getColumnCount ();
+                  if (row == null || row.length != numCol) row = new String[numCol];
+                  fetched = 0;
+                  while (stmt.next(rs)){
+                     for (int i=1; i<=numCol; ++i)
+                        row[i-1] = stmt.getString (rs, i);
+                     ++rowCount;
+                     ++fetched;
+                     handlers[q].row(row);
+                  }//end while
+                  stmt.close(rs);
+               } while (fetched == fetchSize);
+               stmt.execute ("CLOSE pizzastore_stream");
+            }
+         } catch (SQLException | IOException | RuntimeException e) {
+            if (rowCount > 0) throw new PartialResultException(rowCount, e);
+            if (e instanceof SQLException) throw (SQLException) e;
+            throw new SQLException(e.getMessage(), e);
+         }
+         return rowCount;
+      });
+   }//end executeQueriesAndStream
 
+   private static List<List<String>> readAll(TrackedStatement stmt, String query) throws SQLException {
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
 
@@ -154,20 +589,17 @@ public class PizzaStore {
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
+      while (stmt.next(rs)){
+         List<String> record = new ArrayList<String>();
+         for (int i=1; i<=numCol; ++i)
+            record.add(stmt.getString (rs, i));
+         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end readAll
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -178,20 +610,18 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       return execute(QueryClass.READ, query, stmt -> {
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
 
-       int rowCount = 0;
+          int rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+          // iterates through the result set and count nuber of results.
+          while (stmt.next(rs)){
+             rowCount++;
+          }//end while
+          return rowCount;
+       });
    }
 
    /**
@@ -204,54 +634,230 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+      String query = String.format("Select currval('%s')", sequence);
+      return execute(QueryClass.READ, query, stmt -> {
+         ResultSet rs = stmt.executeQuery (query);
+         if (stmt.next(rs))
+            return rs.getInt(1);
+         return -1;
+      });
+   }
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /**
+    * Work done with a freshly created statement. Result sets must be opened
+    * through it so they are closed with it.
+    */
+   interface StatementWork<T> {
+      T run(TrackedStatement stmt) throws SQLException;
    }
 
+   /**
+    * Sends a statement to the right copy of this database. Writes always
+    * run here, on the primary. Reads go to a replica (round robin, skipping
+    * replicas whose breaker is open) unless the session wrote within the
+    * last -Dpizzastore.readYourWritesMillis, so users see their own changes.
+    * A read that fails because the replica can't be reached (lost
+    * connection, open breaker) is run again on the primary; timeouts and
+    * other errors are not.
+    */
+   private <T> T execute(QueryClass qc, String sql, StatementWork<T> work) throws SQLException {
+      if (qc == QueryClass.WRITE) {
+         try {
+            return executeLocal(qc, sql, work);
+         } finally {
+            session.get().wrote();
+         }
+      }
+      PizzaStore replica = pickReplica();
+      if (replica != null) {
+         try {
+            return replica.executeLocal(qc, sql, work);
+         } catch (PartialResultException e) {
+            throw e;
+         } catch (SQLException e) {
+            // only a replica that can't be reached is worth going around; a timeout or
+            // a bad query would just take as long or fail the same way on the primary
+            if (!(e instanceof CircuitOpenException) && Failure.of(e) != Failure.CONNECTION) throw e;
+            // reads are idempotent, the primary can answer instead
+            _health.replicaFallbacks.incrementAndGet();
+         }
+      }
+      return executeLocal(qc, sql, work);
+   }//end execute
+
+   /**
+    * @return the replica to read from, or null to read from the primary
+    */
+   private PizzaStore pickReplica() {
+      if (_replicas.length == 0) return null;
+      if (session.get().wroteWithin(config("readYourWritesMillis", 2000))) {
+         _health.pinnedReads.incrementAndGet();
+         return null;
+      }
+      int start = _nextReplica.getAndIncrement();
+      for (int i = 0; i < _replicas.length; i++) {
+         PizzaStore replica = _replicas[Math.floorMod(start + i, _replicas.length)];
+         if (!replica._health.isOpen()) {
+            _health.replicaReads.incrementAndGet();
+            return replica;
+         }
+      }
+      return null;
+   }//end pickReplica
+
+   /**
+    * Runs one statement on this database with the timeout of its query
+    * class, behind its circuit breaker. Reads that fail because the
+    * connection broke, and any statement that hit a serialization failure or
+    * deadlock, are retried a few times with jittered backoff. Timeouts are
+    * counted but never retried so a stalled database can't stretch the wait.
+    * Nothing is retried inside an open transaction, which a failed statement
+    * has aborted; executeInTransaction reruns the whole work instead.
+    */
+   private <T> T executeLocal(QueryClass qc, String sql, StatementWork<T> work) throws SQLException {
+      int maxAttempts = config("retry.attempts", 3);
+      for (int attempt = 1; ; attempt++) {
+         _health.beforeCall();
+         // anything thrown before a connection is in hand is a connection failure
+         Failure kind = Failure.CONNECTION;
+         boolean inTransaction = false;
+         try {
+            Connection conn = getConnection();
+            kind = null;
+            inTransaction = !conn.getAutoCommit();
+            // creates a statement object, closed with its result sets however the work ends
+            try (TrackedStatement stmt = new TrackedStatement(conn)) {
+               stmt.setQueryTimeout(qc.timeoutSeconds());
+               long started = System.nanoTime();
+               boolean ok = false;
+               try {
+                  T result = work.run(stmt);
+                  ok = true;
+                  _health.onSuccess();
+                  return result;
+               } finally {
+                  Trace.record(_health.name, qc, sql, started, stmt, ok);
+               }
+            }
+         } catch (SQLException e) {
+            if (kind == null) kind = Failure.of(e);
+            _health.onFailure(qc, kind);
+            // forget a broken connection so the next attempt opens a new one
+            if (kind == Failure.CONNECTION) cleanup();
+            if (attempt >= maxAttempts || inTransaction || !kind.retryable(qc)) throw e;
+            _health.retries.incrementAndGet();
+            backoff(attempt);
+         }
+      }
+   }//end execute
+
+   /**
+    * Puts a server-side ceiling on every statement of a new Postgres
+    * connection, since drivers like the bundled pg73 one ignore
+    * setQueryTimeout. It is set once per connection, to
+    * -Dpizzastore.timeout.server seconds (default: the longest query class
+    * timeout); the shorter per-class limits are left to setQueryTimeout,
+    * for drivers that honour it. Other databases (a stand-in picked with
+    * -Dpizzastore.url) are left alone.
+    */
+   private void setServerTimeout(Connection conn) throws SQLException {
+      if (!_url.startsWith("jdbc:postgresql")) return;
+      int seconds = 0;
+      for (QueryClass qc : QueryClass.values())
+         seconds = Math.max(seconds, qc.timeoutSeconds());
+      String sql = "SET statement_timeout = " + config("timeout.server", seconds) * 1000;
+      try (TrackedStatement stmt = new TrackedStatement(conn)) {
+         long started = System.nanoTime();
+         boolean ok = false;
+         try {
+            stmt.execute(sql);
+            ok = true;
+         } finally {
+            Trace.record(_health.name, null, sql, started, stmt, ok);
+         }
+      }
+   }//end setServerTimeout
+
+   /**
+    * Sleeps a random time up to 50ms * 2^attempt (full jitter), capped at 2s.
+    */
+   private static void backoff(int attempt) throws SQLException {
+      long cap = Math.min(2000, 50L << attempt);
+      try {
+         Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while retrying");
+      }
+   }//end backoff
+
    /**
     * Method to close the physical connection if it is open.
     */
-   public void cleanup(){
+   public synchronized void cleanup(){
       try{
          if (this._connection != null){
             this._connection.close ();
+            this._connection = null;
          }//end if
       }catch (SQLException e){
          // ignored.
       }//end try
+      for (PizzaStore shard : _shards)
+         if (shard != this) shard.cleanup();
+      for (PizzaStore replica : _replicas)
+         replica.cleanup();
    }//end cleanup
 
+   // action names of the user menu entries, for tracing
+   private static final String[] USER_ACTIONS = { null,
+      "viewProfile", "updateProfile", "viewMenu", "placeOrder", "viewAllOrders", "viewRecentOrders",
+      "viewOrderInfo", "viewStores", "updateOrderStatus", "updateMenu", "updateUser", "viewSystemStatus",
+      "claimOrder", "restockInventory" };
+
    /**
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      String mode = args.length > 3 ? args[3] : "";
+      if (args.length < 3 || !(mode.isEmpty() || mode.equals("loadgen")
+            || ((mode.equals("export") || mode.equals("analyze")) && args.length == 5))) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             PizzaStore.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [loadgen [<option>=<value> ...] | export <file> | analyze <file>]");
          return;
       }//end if
 
+      long startNanos = System.nanoTime();
       Greeting();
       PizzaStore esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the PizzaStore object and creates a physical
-         // connection.
+         // instantiate the PizzaStore object; the physical connection and the
+         // caches are set up in the background while the menu is shown.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
          esql = new PizzaStore (dbname, dbport, user, "");
-         orderCounter = getCurrentAvailableOrderID(esql);
+         if (mode.equals("export")) {
+            OrderSnapshot.export(esql, new File(args[4]));
+            System.out.println("Order history written to " + args[4]);
+            return;
+         }
+         if (mode.equals("analyze")) {
+            OrderSnapshot.analyze(new File(args[4]), System.out);
+            return;
+         }
+         Warmup warmup = Warmup.start(esql, startNanos);
+         Archiver.start(esql);
+         inventory.startFlusher(esql);
+         if (mode.equals("loadgen")) {
+            LoadGenerator.run(esql, warmup, Arrays.copyOfRange(args, 4, args.length));
+            return;
+         }
 
          boolean keepon = true;
          while(keepon) {
@@ -262,12 +868,15 @@ public class PizzaStore {
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()){
+            int choice = readChoice();
+            Trace.begin(choice == 1 ? "createUser" : choice == 2 ? "logIn" : null);
+            switch (choice){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
+            Trace.end();
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
@@ -288,10 +897,15 @@ public class PizzaStore {
                 //**the following functionalities should ony be able to be used by managers**
                 System.out.println("10. Update Menu");
                 System.out.println("11. Update User");
+                System.out.println("12. View System Status");
+                System.out.println("13. Claim Next Order");
+                System.out.println("14. Restock Inventory");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
+                choice = readChoice();
+                Trace.begin(choice >= 0 && choice < USER_ACTIONS.length ? USER_ACTIONS[choice] : null);
+                switch (choice){
                    case 1: viewProfile(esql, authorisedUser); break;
                    case 2: updateProfile(esql, authorisedUser); break;
                    case 3: viewMenu(esql); break;
@@ -303,12 +917,16 @@ public class PizzaStore {
                    case 9: updateOrderStatus(esql, authorisedUser); break;
                    case 10: updateMenu(esql, authorisedUser); break;
                    case 11: updateUser(esql, authorisedUser); break;
+                   case 12: viewSystemStatus(esql, authorisedUser); break;
+                   case 13: claimNextOrder(esql, authorisedUser); break;
+                   case 14: restockInventory(esql, authorisedUser); break;
 
 
 
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
+                Trace.end();
               }
             }
          }//end while
@@ -318,9 +936,12 @@ public class PizzaStore {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               inventory.flushQuietly(esql);
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
+               if (ResourceTracker.DEBUG && ResourceTracker.anyOpen())
+                  System.err.println("Leaked " + ResourceTracker.describe());
             }//end if
          }catch (Exception e) {
             // ignored.
@@ -344,8 +965,16 @@ public class PizzaStore {
       // returns only if a correct value is given.
       do {
          System.out.print("Please make your choice: ");
+         String line;
+         try {
+            line = in.readLine();
+         }catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+         // no more input (or a load generator script ran out), asking again won't help
+         if (line == null) throw new UncheckedIOException(new EOFException("End of input"));
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            input = Integer.parseInt(line);
             break;
          }catch (Exception e) {
             System.out.println("Your input is invalid!");
@@ -375,9 +1004,10 @@ public class PizzaStore {
 
          String query = String.format("INSERT INTO Users VALUES ('%s', '%s', 'customer', NULL, '%s');", login, password, phoneNum);
          esql.executeUpdate(query);
+         userCache.put(login, Arrays.asList(login, "customer"));
       }
       catch (Exception e){
-         System.out.println(e);
+         reportError(e);
       }
 
 
@@ -413,7 +1043,7 @@ public class PizzaStore {
          }
       }
       catch (Exception e){
-         System.out.println(e);
+         reportError(e);
          return null;
       }
    }//end
@@ -431,7 +1061,7 @@ public class PizzaStore {
 
       }
       catch(Exception e) {
-         System.out.println(e);
+         reportError(e);
       }
    }
 
@@ -480,7 +1110,7 @@ public class PizzaStore {
             default: System.out.println("Unrecognized choice!"); break;
          }
       } catch (Exception e){
-         System.err.println(e);
+         reportError(e);
       }     
    }
 
@@ -494,15 +1124,19 @@ public class PizzaStore {
          System.out.println("sorted asc or desc? (enter nothing for no filter): ");
          String sort = in.readLine();
 
-         String query = String.format("SELECT * FROM Items WHERE typeOfItem = '%s' AND price < %s;", filter, price);
-         // System.out.println(query);
-         if (!sort.isEmpty()) {
-            query = query.substring(0,query.length() - 1);
-            query+= "ORDER BY price " + sort + ";";
-         }
+         menuCache.reloadIfStale(esql, "SELECT * FROM Items;");
+         List<List<String>> res = filterMenu(filter, price, sort);
+         if (res == null) {
+            String query = String.format("SELECT * FROM Items WHERE typeOfItem = '%s' AND price < %s;", filter, price);
+            // System.out.println(query);
+            if (!sort.isEmpty()) {
+               query = query.substring(0,query.length() - 1);
+               query+= "ORDER BY price " + sort + ";";
+            }
 
-         // System.out.println(query);
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
+            // System.out.println(query);
+            res = esql.executeQueryAndReturnResult(query);
+         }
          // System.out.println(res);
          for (int i = 0; i < res.size(); i++) {
             System.out.println(
@@ -512,20 +1146,27 @@ public class PizzaStore {
          }
 
       } catch (Exception e) {
-         System.err.println(e);
+         reportError(e);
       }
    }
 
 
    public static void placeOrder(PizzaStore esql, String login) {
-      
+      // stock held for this order, handed back unless the order is placed
+      List<Inventory.Reservation> reservations = new ArrayList<Inventory.Reservation>();
+      boolean placed = false;
       try{
          //Choose Store
          System.out.println("Which store would you like to order from? (Please input StoreID): ");
          String storeID = in.readLine();
 
-         String query = String.format("SELECT s.storeID FROM Store s WHERE s.storeID = '%s';", storeID );
-         List<List<String>> store = esql.executeQueryAndReturnResult(query);
+         String query;
+         List<List<String>> store = storeCache.lookup(storeID.trim());
+         if (store.isEmpty()) {
+            query = String.format("SELECT * FROM Store s WHERE s.storeID = '%s';", storeID );
+            store = esql.executeQueryAndReturnResult(query);
+            if (!store.isEmpty() && storeCache.isWarm()) storeCache.put(storeID, store.get(0));
+         }
          
          //Check if exists
          if (store.isEmpty()){// DOes not exists
@@ -533,22 +1174,27 @@ public class PizzaStore {
             return;
          }
 
-         // System.out.println(orderCounter);
-         query = String.format("INSERT INTO FoodOrder VALUES('%d', '%s', '%d', 0, NOW(), 'placed');", orderCounter, login, Integer.parseInt(store.get(0).get(0)));
-         // System.out.println("Does it go past query creation?");
-         esql.executeUpdate(query);
-         // System.out.println("Does it go past the query?");
-         
+         int storeNum = Integer.parseInt(store.get(0).get(0).trim());
 
-         //Enter Item (Need to create an ItemsInOrder entry for each food item)
+         //Enter Item (the order is built here and only written once it is complete)
+         List<String[]> items = new ArrayList<String[]>();
          boolean enteringItems = true;
          float currentSum = 0;
          while(enteringItems){
             System.out.println("Please enter Item Name");
             String itemName = in.readLine();
+            if (itemName == null) {
+               // input ended, the order is abandoned and its stock released
+               System.out.println("Order abandoned.");
+               return;
+            }
 
-            query = String.format("SELECT * FROM Items i WHERE i.itemName = '%s';",  itemName);
-            List<List<String>> item = esql.executeQueryAndReturnResult(query);
+            List<List<String>> item = menuCache.lookup(itemName);
+            if (item.isEmpty()) {
+               query = String.format("SELECT * FROM Items i WHERE i.itemName = '%s';",  itemName);
+               item = esql.executeQueryAndReturnResult(query);
+               if (!item.isEmpty() && menuCache.isWarm()) menuCache.put(itemName, item.get(0));
+            }
            
             
             //Check if exists
@@ -560,12 +1206,17 @@ public class PizzaStore {
             //Get Quantity: 
             System.out.println("Enter Quantity: ");
             int quantity = Integer.parseInt(in.readLine());
+
+            Inventory.Reservation reservation = inventory.reserve(esql, storeNum, item.get(0).get(0), quantity);
+            if (reservation == null) {
+               System.out.println(String.format("Sorry, only %d left at this store.", inventory.available(storeNum, item.get(0).get(0))));
+               continue;
+            }
+            reservations.add(reservation);
             
             currentSum += Float.parseFloat(item.get(0).get(3)) * quantity;
 
-            //Insert into ItemsInOrder:
-            query = String.format("INSERT INTO ItemsInOrder VALUES ('%d', '%s', '%d')", orderCounter, itemName, quantity);
-            esql.executeUpdate(query);
+            items.add(new String[] { itemName, String.valueOf(quantity) });
 
             System.out.println("Would you like to add any more items?");
             System.out.println("1 - Yes");
@@ -583,14 +1234,36 @@ public class PizzaStore {
          //Total Price
          System.out.println("Current Price: " + currentSum);
 
-         //Adjusting FoodOrders:
-         query = String.format("UPDATE FoodOrder SET totalPrice = %f WHERE orderID= %d", currentSum, orderCounter);
-         esql.executeUpdate(query);
+         // order rows live on the store's shard, menu and stores stay on the main database
+         PizzaStore shard = esql.forStore(storeNum);
+         final int orderID;
+         final float total = currentSum;
+         AdmissionController.Permit permit = orderAdmission.acquire(storeNum);
+         try {
+            orderID = nextOrderID(esql, esql.shardOfStore(storeNum));
+            // the order and its items are written together or not at all
+            shard.executeInTransaction(db -> {
+               db.executeUpdate(String.format("INSERT INTO FoodOrder VALUES('%d', '%s', '%d', %f, NOW(), 'placed');", orderID, login, storeNum, total));
+
+               //Insert into ItemsInOrder:
+               for (String[] entry : items)
+                  db.executeUpdate(String.format("INSERT INTO ItemsInOrder VALUES ('%d', '%s', '%s')", orderID, entry[0], entry[1]));
+               return null;
+            });
+         } finally {
+            permit.close();
+         }
+
+         placed = true;
+         inventory.commit(reservations);
 
-         orderCounter++;
+         // ready for a driver
+         dispatch.add(orderID, storeNum, System.currentTimeMillis());
 
       }catch(Exception e){
-         System.err.println(e);
+         reportError(e);
+      }finally{
+         if (!placed) inventory.release(reservations);
       }
 
    }
@@ -599,16 +1272,23 @@ public class PizzaStore {
    public static void viewAllOrders(PizzaStore esql, String login) {
       try {
          // System.out.println(role);
-         String query = String.format("SELECT orderID FROM FoodOrder O");
+         String query = String.format("SELECT orderID, orderTimestamp FROM FoodOrder O");
          List<List<String>> res;
+         final boolean archive = Archiver.hasArchive(esql);
 
          if (isCustomer(esql, login)) {
             // System.out.println("executing customer query");
-            res = esql.executeQueryAndReturnResult(
-               query += String.format(" WHERE O.login = '%s';", login));
+            final String q = query + String.format(" WHERE O.login = '%s';", login);
+            res = mergeByTimestamp(esql.fanOut(shard -> Archiver.withArchived(shard, QueryClass.READ, q, archive)), 1, false, -1);
          } else {
             // System.out.println("executing non-customer query");
-            res = esql.executeQueryAndReturnResult(query += ";");
+            final String q = query + ";";
+            AdmissionController.Permit permit = reportAdmission.acquire(-1);
+            try {
+               res = mergeByTimestamp(esql.fanOut(shard -> Archiver.withArchived(shard, QueryClass.REPORT, q, archive)), 1, false, -1);
+            } finally {
+               permit.close();
+            }
             // System.out.println(res);
          }
 
@@ -621,7 +1301,7 @@ public class PizzaStore {
          }
 
       } catch (Exception e) {
-         System.err.println(e);
+         reportError(e);
       }
    }
    public static void viewRecentOrders(PizzaStore esql, String login) {
@@ -631,13 +1311,15 @@ public class PizzaStore {
          List<List<String>> res;
          String mostRecent = " ORDER BY O.orderTimestamp DESC LIMIT 5;";
 
+         // every shard returns its own 5 newest, the newest 5 of those win
          if (isCustomer(esql, login)) {
             // System.out.println("executing customer query");
-            res = esql.executeQueryAndReturnResult(
-                  query + String.format(" WHERE O.login = '%s'" + mostRecent, login));
+            final String q = query + String.format(" WHERE O.login = '%s'" + mostRecent, login);
+            res = mergeByTimestamp(esql.fanOut(shard -> shard.executeQueryAndReturnResult(q)), 1, true, 5);
          } else {
             // System.out.println("executing non-customer query");
-            res = esql.executeQueryAndReturnResult(query + mostRecent);
+            final String q = query + mostRecent;
+            res = mergeByTimestamp(esql.fanOut(shard -> shard.executeQueryAndReturnResult(QueryClass.REPORT, q)), 1, true, 5);
             // System.out.println(res);
          }
 
@@ -650,7 +1332,7 @@ public class PizzaStore {
          }
 
       } catch (Exception e) {
-         System.err.println(e);
+         reportError(e);
          ;
       }
    }
@@ -658,14 +1340,17 @@ public class PizzaStore {
       try {
          System.out.println("Enter order ID to view: ");
          String orderID = in.readLine();
+         int id = Integer.parseInt(orderID.trim());
          List<List<String>> res;
    
          // System.out.println(role);
          
          if (isCustomer(esql, login)) {
             // System.out.println("executing customer query");
-            res = esql.executeQueryAndReturnResult(
-               String.format("SELECT * FROM FoodOrder O, ItemsInOrder I WHERE O.login = '%s' AND O.orderID = %s AND I.orderID = O.orderID;", login, orderID));
+            String query = String.format("SELECT * FROM FoodOrder O, ItemsInOrder I WHERE O.login = '%s' AND O.orderID = %s AND I.orderID = O.orderID;", login, orderID);
+            res = esql.executeForOrder(id, query);
+            if (res.isEmpty() && Archiver.hasArchive(esql))
+               res = esql.executeForOrder(id, Archiver.archived(query));
             if (res.isEmpty()) {
                System.out.println("Own order not found, please choose your own order.\n");
             }
@@ -673,8 +1358,10 @@ public class PizzaStore {
 
          else {
             // System.out.println("executing non-customer query");
-            res = esql.executeQueryAndReturnResult(
-                  String.format("SELECT * FROM FoodOrder O, ItemsInOrder I WHERE O.orderID = %s AND O.orderID = I.orderID;", orderID));
+            String query = String.format("SELECT * FROM FoodOrder O, ItemsInOrder I WHERE O.orderID = %s AND O.orderID = I.orderID;", orderID);
+            res = esql.executeForOrder(id, query);
+            if (res.isEmpty() && Archiver.hasArchive(esql))
+               res = esql.executeForOrder(id, Archiver.archived(query));
             
             // System.out.println(res);
          }
@@ -686,14 +1373,18 @@ public class PizzaStore {
             }
          
       } catch (Exception e) {
-         System.err.println(e);;
+         reportError(e);
       }
    }
    public static void viewStores(PizzaStore esql) {
       try {
-         String query = String.format("SELECT * FROM Store;");
-         // System.out.println(query);
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
+         storeCache.reloadIfStale(esql, "SELECT * FROM Store;");
+         List<List<String>> res = storeCache.isWarm() ? storeCache.sortedRows() : null;
+         if (res == null) {
+            String query = String.format("SELECT * FROM Store;");
+            // System.out.println(query);
+            res = esql.executeQueryAndReturnResult(query);
+         }
          // System.out.println(res);
          for (int i = 0; i < res.size(); i++) {
             System.out.println(
@@ -702,7 +1393,7 @@ public class PizzaStore {
          }
 
       } catch (Exception e) {
-         System.out.println(e);
+         reportError(e);
       }
    }
    public static void updateOrderStatus(PizzaStore esql, String login) {
@@ -720,11 +1411,112 @@ public class PizzaStore {
          // System.out.println(role);
          
          //S-> aaa X bb#aa X bbb
-         esql.executeUpdate(String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %s;", status, orderID));
+         int id = Integer.parseInt(orderID.trim());
+         esql.executeUpdateForOrder(id, String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %s;", status, orderID));
          System.out.println(String.format("Order %s changed", orderID));
+
+         // keep the dispatch queue in step with the new status
+         if (status.trim().equals("placed")) {
+            List<List<String>> res = esql.executeForOrder(id,
+               String.format("SELECT orderID, storeID, orderTimestamp FROM FoodOrder WHERE orderID = %d;", id));
+            if (!res.isEmpty())
+               dispatch.add(id, Integer.parseInt(res.get(0).get(1).trim()), Timestamp.valueOf(res.get(0).get(2).trim()).getTime());
+         } else {
+            dispatch.remove(id);
+         }
+      }
+      catch (Exception e) {
+         reportError(e);
+      }
+   }
+
+   /**
+    * Lets managers add stock of an item at a store (or take it away with a
+    * negative amount). An item without stock becomes tracked from here on.
+    **/
+   public static void restockInventory(PizzaStore esql, String login) {
+      if(!isRole(esql, login, "manager")){
+         System.out.println("You do not have access to this option! Darn customers...");
+         return;
+      }
+      try {
+         System.out.println("Enter store ID: ");
+         String storeID = in.readLine().trim();
+         List<List<String>> store = storeCache.lookup(storeID);
+         if (store.isEmpty()) {
+            store = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Store s WHERE s.storeID = '%s';", storeID));
+            if (!store.isEmpty() && storeCache.isWarm()) storeCache.put(storeID, store.get(0));
+         }
+         if (store.isEmpty()) {
+            System.out.println("Store does not exist.");
+            return;
+         }
+         System.out.println("Enter item name: ");
+         String itemName = in.readLine();
+         List<List<String>> item = menuCache.lookup(itemName);
+         if (item.isEmpty()) {
+            item = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Items i WHERE i.itemName = '%s';", itemName));
+            if (!item.isEmpty() && menuCache.isWarm()) menuCache.put(itemName, item.get(0));
+         }
+         if (item.isEmpty()) {
+            System.out.println("Item does not exist.");
+            return;
+         }
+         System.out.println("Enter quantity to add: ");
+         int quantity = Integer.parseInt(in.readLine().trim());
+
+         int storeNum = Integer.parseInt(store.get(0).get(0).trim());
+         int level = inventory.restock(esql, storeNum, item.get(0).get(0), quantity);
+         System.out.println(String.format("Stock of %s at store %d is now %d.", item.get(0).get(0).trim(), storeNum, level));
+      } catch (Exception e) {
+         reportError(e);
+      }
+   }
+
+   /**
+    * Lets a driver take the oldest order waiting at a store. The claim comes
+    * off the in-memory dispatch queue and is persisted as a status change
+    * that only applies while the order is still 'placed'.
+    **/
+   public static void claimNextOrder(PizzaStore esql, String login) {
+      try {
+         if (isCustomer(esql, login)) {
+            System.out.println("You do not have access to this operation! Darn customers... ");
+            return;
+         }
+         if (!dispatch.isLoaded()) {
+            System.out.println("Dispatch queue is still loading, please try again shortly.");
+            return;
+         }
+
+         System.out.println("Enter store ID to take an order from: ");
+         int storeID = Integer.parseInt(in.readLine().trim());
+
+         String claimed = config("dispatch.claimStatus", "out for delivery");
+         DispatchQueues.Entry next;
+         while ((next = dispatch.claim(storeID)) != null) {
+            int rows;
+            try {
+               // falls back to the other shards for orders placed before sharding or a shardMap
+               // change; the storeID keeps it from ever touching another store's order
+               rows = esql.executeUpdateForOrder(next.orderID, String.format(
+                  "UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %d AND storeID = %d AND orderStatus = 'placed';",
+                  claimed, next.orderID, next.storeID));
+            } catch (SQLException e) {
+               // not claimed after all, give it back
+               dispatch.add(next.orderID, next.storeID, next.placedAt);
+               throw e;
+            }
+            if (rows > 0) {
+               System.out.println(String.format("Order %d is yours (placed %s)", next.orderID, new Timestamp(next.placedAt)));
+               return;
+            }
+            // changed elsewhere in the meantime, try the next one
+         }
+         System.out.println("No orders waiting at this store.");
       }
       catch (Exception e) {
-         System.err.println(e);
+         reportError(e);
       }
    }
 
@@ -756,6 +1548,7 @@ public class PizzaStore {
 
                String query = String.format("INSERT INTO Items VALUES ('%s', '%s', '%s', %f, '%s');", name, ingredients, type, price, desc);
                esql.executeUpdate(query);
+               menuCache.refresh(esql, String.format("SELECT * FROM Items i WHERE i.itemName = '%s'", name), name);
 
                break;
             case 2: //Existing
@@ -793,13 +1586,14 @@ public class PizzaStore {
                String newDesc = in.readLine();
 
                String q2 = String.format("UPDATE Items SET ingredients = '%s', typeOfItem = '%s', price = '%f', description= '%s' WHERE itemName = '%s';",  newIngredients, newType, newPrice, newDesc, updateName);
-               esql.executeQuery(q2);
+               esql.executeUpdate(q2);
+               menuCache.refresh(esql, q1, updateName);
 
                break;         
             default : System.out.println("Unrecognized choice!"); break;
             }
       } catch (Exception e) {
-         System.out.println(e);
+         reportError(e);
       }
       
 
@@ -864,6 +1658,8 @@ public class PizzaStore {
                System.out.println("Enter new login.");
                String log = in.readLine();
                esql.executeUpdate(String.format("UPDATE Users SET login = '%s' WHERE login = '%s' ;", log, updateName));
+               userCache.remove(updateName);
+               userCache.refresh(esql, String.format("SELECT login, role FROM Users WHERE login = '%s';", log), log);
                break;
             case 2:
                System.out.println("Enter new password.");
@@ -874,6 +1670,7 @@ public class PizzaStore {
                System.out.println("Enter new role.");
                String role = in.readLine();
                esql.executeUpdate(String.format("UPDATE Users SET role = '%s' WHERE login = '%s' ;", role, updateName));
+               userCache.refresh(esql, String.format("SELECT login, role FROM Users WHERE login = '%s';", updateName), updateName);
                return;
             case 4:
                System.out.println("Enter new Favorite Item(s).");
@@ -891,11 +1688,31 @@ public class PizzaStore {
          }
 
       } catch(Exception e){
-         System.err.println(e);
+         reportError(e);
       }
 
    }
 
+   /**
+    * Shows managers the health of the database connections: circuit
+    * breaker state, retries and timeouts per query class.
+    **/
+   public static void viewSystemStatus(PizzaStore esql, String login) {
+      if(!isRole(esql, login, "manager")){
+         System.out.println("You do not have access to this option! Darn customers...");
+         return;
+      }
+      System.out.println("\nSystem Status:\n");
+      System.out.println(Health.describeAll());
+      System.out.println(ResourceTracker.describe());
+      System.out.println(dispatch.describe());
+      System.out.println(Archiver.describe());
+      System.out.println(orderAdmission.describe());
+      System.out.println(reportAdmission.describe());
+      System.out.println(inventory.describe());
+      System.out.println(Trace.describe());
+   }
+
    /**
     * checks user login for their role
     * @param login login string
@@ -904,15 +1721,11 @@ public class PizzaStore {
     **/
    public static Boolean isCustomer(PizzaStore esql, String login) {
       try {
-         List<List<String>> res = esql.executeQueryAndReturnResult(String.format("SELECT role FROM Users WHERE login = '%s';", login));
-   
-         // System.out.println(res.get(0).get(0));
-         
          // i hate bad data goddammit
-         return res.get(0).get(0).trim().contains("customer");
+         return lookupRole(esql, login).trim().contains("customer");
          
       } catch (Exception e) {
-         System.err.println(e);
+         reportError(e);
       }
       return false;
    }
@@ -920,28 +1733,2451 @@ public class PizzaStore {
 // Helper Functions:
    public static Boolean isRole(PizzaStore esql, String login, String role) {
       try {
-         List<List<String>> res = esql.executeQueryAndReturnResult(String.format("SELECT role FROM Users WHERE login = '%s';", login));
-   
-         // System.out.println(res.get(0).get(0));
-         
          // i love good data godblessit
-         return res.get(0).get(0).trim().contains(role);
+         return lookupRole(esql, login).trim().contains(role);
          
       } catch (Exception e) {
-         System.err.println(e);
+         reportError(e);
       }
       return false;
    }
 
-   public static int getCurrentAvailableOrderID(PizzaStore esql){
-      try{
-         return Integer.parseInt(esql.executeQueryAndReturnResult("SELECT MAX(orderID) FROM FoodOrder").get(0).get(0))+1;
-      } catch (Exception e) {
-         System.err.println(e);
-      }
-
-      return -1;
+   /**
+    * Prints an error caught by an action and remembers it for the thread, so
+    * callers that only see the console (the load generator) can count it.
+    **/
+   public static void reportError(Exception e) {
+      lastError.set(e);
+      System.err.println(e);
    }
 
+   /**
+    * Returns the role of a user, from the user cache when it is warm and
+    * the row is younger than -Dpizzastore.roleCacheMillis; otherwise from
+    * the database, refreshing the cache.
+    * @return role string as stored in Users
+    **/
+   public static String lookupRole(PizzaStore esql, String login) throws SQLException {
+      List<List<String>> res = userCache.lookup(login);
+      if (res.isEmpty()) {
+         res = esql.executeQueryAndReturnResult(String.format("SELECT login, role FROM Users WHERE login = '%s';", login));
+         if (!res.isEmpty() && userCache.isWarm()) userCache.put(login, res.get(0));
+      }
+      // System.out.println(res.get(0).get(1));
+      return res.get(0).get(1);
+   }
+
+   /**
+    * Answers viewMenu from the menu cache.
+    * @return matching items, or null if the cache is cold or the filter
+    *         is something only the database can evaluate
+    **/
+   public static List<List<String>> filterMenu(String type, String price, String sort) {
+      if (!menuCache.isWarm()) return null;
+      final double limit;
+      try {
+         limit = Double.parseDouble(price.trim());
+      } catch (NumberFormatException e) {
+         return null;
+      }
+      final String dir = sort.trim().toLowerCase();
+      if (!dir.isEmpty() && !dir.equals("asc") && !dir.equals("desc")) return null;
+
+      List<List<String>> res = new ArrayList<List<String>>();
+      for (List<String> item : menuCache.rows()) {
+         if (item.get(2).trim().equals(type.trim()) && Double.parseDouble(item.get(3)) < limit)
+            res.add(item);
+      }
+      if (!dir.isEmpty()) {
+         res.sort(new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               int c = Double.compare(Double.parseDouble(a.get(3)), Double.parseDouble(b.get(3)));
+               return dir.equals("desc") ? -c : c;
+            }
+         });
+      }
+      return res;
+   }
+
+   /**
+    * @return one past the highest orderID on any shard (orders from before
+    *         sharding don't follow the shard rule, so every shard counts),
+    *         archived orders included
+    **/
+   public static int getCurrentAvailableOrderID(PizzaStore esql){
+      try{
+         int next = 1;
+         final String query = Archiver.hasArchive(esql)
+            ? "SELECT GREATEST((SELECT MAX(orderID) FROM FoodOrder), (SELECT MAX(orderID) FROM FoodOrderArchive))"
+            : "SELECT MAX(orderID) FROM FoodOrder";
+         for (List<List<String>> res : esql.fanOut(shard -> shard.executeQueryOnPrimary(QueryClass.READ, query))) {
+            String max = res.get(0).get(0);
+            // empty table: start numbering at 1
+            if (max != null) next = Math.max(next, Integer.parseInt(max.trim())+1);
+         }
+         return next;
+      } catch (Exception e) {
+         reportError(e);
+      }
+
+      return -1;
+   }
+
+   /**
+    * Hands out the next orderID of a shard, reading the current maximum
+    * from the database if the startup warm-up has not done so yet.
+    * @return orderID to use for a new order
+    **/
+   public static synchronized int nextOrderID(PizzaStore esql, int shard) throws SQLException {
+      initOrderCounter(esql, shard);
+      int next = orderCounters[shard];
+      orderCounters[shard] += esql.shardCount();
+      lastOrderID.set(next);
+      return next;
+   }
+
+   /**
+    * Sets the counter of every shard not known yet, unless the one asked
+    * for is: each starts past the highest orderID on all shards, rounded up
+    * so it maps back to its shard.
+    **/
+   public static synchronized void initOrderCounter(PizzaStore esql, int shard) throws SQLException {
+      int n = esql.shardCount();
+      if (orderCounters == null) orderCounters = new int[n];
+      if (orderCounters[shard] > 0) return;
+      int next = getCurrentAvailableOrderID(esql);
+      if (next <= 0)
+         throw new SQLException("Unable to determine next order ID");
+      for (int k = 0; k < n; k++)
+         if (orderCounters[k] <= 0) orderCounters[k] = next + Math.floorMod(k - next, n);
+   }
+
+   /**
+    * A statement together with the result sets opened through it. Closing it
+    * closes all of them, and ResourceTracker keeps count of what is open.
+    */
+   static class TrackedStatement implements AutoCloseable {
+      private final Connection conn;
+      private final Statement stmt;
+      private final List<ResultSet> results = new ArrayList<ResultSet>(1);
+      // set when beginTransaction opened a transaction that close() must end
+      private boolean inTransaction = false;
+      // rows fetched or affected, characters fetched and statements sent, for the trace
+      int rows = 0;
+      long bytes = 0;
+      int trips = 0;
+
+      TrackedStatement(Connection conn) throws SQLException {
+         this.conn = conn;
+         this.stmt = conn.createStatement ();
+         ResourceTracker.opened(stmt);
+      }
+
+      /**
+       * Opens a transaction for a cursor, which Postgres only keeps inside
+       * one. It is rolled back (it only read) on close, closing the cursor.
+       */
+      void beginTransaction() throws SQLException {
+         if (conn.getAutoCommit()) {
+            conn.setAutoCommit(false);
+            inTransaction = true;
+            // the ROLLBACK sent by close(), after the call is recorded
+            trips++;
+         }
+      }
+
+      void setQueryTimeout(int seconds) throws SQLException {
+         stmt.setQueryTimeout(seconds);
+      }
+
+      ResultSet executeQuery(String sql) throws SQLException {
+         trips++;
+         ResultSet rs = stmt.executeQuery (sql);
+         ResourceTracker.opened(rs);
+         results.add(rs);
+         return rs;
+      }
+
+      /**
+       * Closes a result set early, for work that runs many queries.
+       */
+      void close(ResultSet rs) {
+         if (!results.remove(rs)) return;
+         try {
+            rs.close ();
+         } catch (SQLException e) {
+            // ignored.
+         } finally {
+            ResourceTracker.closed(rs);
+         }
+      }
+
+      int executeUpdate(String sql) throws SQLException {
+         trips++;
+         rows = stmt.executeUpdate (sql);
+         return rows;
+      }
+
+      /**
+       * Runs a statement whose result doesn't matter, such as a SET.
+       */
+      void execute(String sql) throws SQLException {
+         trips++;
+         stmt.execute (sql);
+      }
+
+      /**
+       * Advances the result set, counting the rows fetched.
+       */
+      boolean next(ResultSet rs) throws SQLException {
+         if (!rs.next()) return false;
+         rows++;
+         return true;
+      }
+
+      /**
+       * Reads a column, counting the characters fetched (about the bytes on
+       * the wire, values travel as text).
+       */
+      String getString(ResultSet rs, int column) throws SQLException {
+         String value = rs.getString (column);
+         if (value != null) bytes += value.length();
+         return value;
+      }
+
+      /**
+       * Closes result sets and statement; errors while closing are ignored so
+       * they can't hide the exception that ended the work.
+       */
+      @Override
+      public void close() {
+         for (ResultSet rs : results) {
+            try {
+               rs.close ();
+            } catch (SQLException e) {
+               // ignored.
+            } finally {
+               ResourceTracker.closed(rs);
+            }
+         }
+         try {
+            stmt.close ();
+         } catch (SQLException e) {
+            // ignored.
+         } finally {
+            ResourceTracker.closed(stmt);
+         }
+         if (inTransaction) {
+            try {
+               conn.rollback();
+               conn.setAutoCommit(true);
+            } catch (SQLException e) {
+               // ignored, a broken connection is replaced on the next failure
+            }
+         }
+      }
+   }//end TrackedStatement
+
+   /**
+    * A streamed query failed after some rows were already handed out. It is
+    * never retried or sent elsewhere, that would hand the rows out twice.
+    */
+   static class PartialResultException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      PartialResultException(int rows, Exception cause) {
+         super("Query failed after " + rows + " rows: " + cause.getMessage(), cause);
+      }
+   }//end PartialResultException
+
+   /**
+    * Counts open statements and result sets. With -Dpizzastore.debug=true it
+    * also remembers where each open one was allocated, so anything still open
+    * at shutdown (or shown in the system status) can be traced back.
+    */
+   static class ResourceTracker {
+      static final boolean DEBUG = Boolean.parseBoolean(config("debug", "false"));
+
+      static final AtomicLong openStatements = new AtomicLong();
+      static final AtomicLong openResultSets = new AtomicLong();
+      static final AtomicLong statementsOpened = new AtomicLong();
+      static final AtomicLong resultSetsOpened = new AtomicLong();
+      private static final Map<Object, Throwable> sites = Collections.synchronizedMap(new IdentityHashMap<Object, Throwable>());
+
+      static void opened(Object resource) {
+         if (resource instanceof ResultSet) {
+            openResultSets.incrementAndGet();
+            resultSetsOpened.incrementAndGet();
+         } else {
+            openStatements.incrementAndGet();
+            statementsOpened.incrementAndGet();
+         }
+         if (DEBUG) sites.put(resource, new Throwable("allocated in " + Thread.currentThread().getName()));
+      }
+
+      static void closed(Object resource) {
+         if (resource instanceof ResultSet) openResultSets.decrementAndGet();
+         else openStatements.decrementAndGet();
+         if (DEBUG) sites.remove(resource);
+      }
+
+      static boolean anyOpen() {
+         return openStatements.get() > 0 || openResultSets.get() > 0;
+      }
+
+      static String describe() {
+         StringBuilder sb = new StringBuilder();
+         sb.append(String.format("JDBC resources\n\topen statements: %d (%d opened), open result sets: %d (%d opened)\n",
+            openStatements.get(), statementsOpened.get(), openResultSets.get(), resultSetsOpened.get()));
+         if (DEBUG) {
+            synchronized (sites) {
+               for (Map.Entry<Object, Throwable> e : sites.entrySet()) {
+                  sb.append("\t").append(e.getKey().getClass().getSimpleName())
+                    .append(" ").append(e.getValue().getMessage()).append('\n');
+                  StackTraceElement[] frames = e.getValue().getStackTrace();
+                  for (int i = 0; i < Math.min(frames.length, 12); i++)
+                     sb.append("\t\tat ").append(frames[i]).append('\n');
+               }
+            }
+         }
+         return sb.toString();
+      }
+   }//end ResourceTracker
+
+   /**
+    * Kinds of statements. Each has its own timeout, settable with
+    * -Dpizzastore.timeout.&lt;read|report|write&gt; (seconds). Only the
+    * idempotent ones are retried after a lost connection.
+    */
+   enum QueryClass {
+      READ(5, true),      // point lookups behind interactive actions
+      REPORT(30, true),   // full listings and bulk loads
+      WRITE(10, false);
+
+      private final int defaultTimeout;
+      final boolean idempotent;
+
+      QueryClass(int defaultTimeout, boolean idempotent) {
+         this.defaultTimeout = defaultTimeout;
+         this.idempotent = idempotent;
+      }
+
+      int timeoutSeconds() {
+         return config("timeout." + name().toLowerCase(), defaultTimeout);
+      }
+   }//end QueryClass
+
+   /**
+    * Why a statement failed, read from its SQLState. Drivers that leave the
+    * SQLState out (the bundled pg73 one always does) are classified by the
+    * cause and the message instead.
+    */
+   enum Failure {
+      CONNECTION, TIMEOUT, SERIALIZATION, OTHER;
+
+      static Failure of(SQLException e) {
+         String state = e.getSQLState();
+         if (state == null) return ofMessage(e);
+         if (state.startsWith("08") || state.startsWith("57P0")) return CONNECTION;
+         if (state.equals("57014")) return TIMEOUT;
+         if (state.equals("40001") || state.equals("40P01")) return SERIALIZATION;
+         return OTHER;
+      }
+
+      private static Failure ofMessage(SQLException e) {
+         if (e.getCause() instanceof IOException) return CONNECTION;
+         String msg = String.valueOf(e.getMessage()).toLowerCase();
+         if (msg.contains("statement timeout") || msg.contains("canceling statement")
+               || msg.contains("query was cancelled"))
+            return TIMEOUT;
+         if (msg.contains("could not serialize") || msg.contains("deadlock detected"))
+            return SERIALIZATION;
+         // pg73 driver messages for lost or refused connections
+         if (msg.contains("i/o error") || msg.contains("io erro") || msg.contains("broken the connection")
+               || msg.contains("connection is closed") || msg.contains("connection attempt failed")
+               || msg.contains("connection refused") || msg.contains("connection error")
+               || msg.contains("terminating connection"))
+            return CONNECTION;
+         return OTHER;
+      }
+
+      /**
+       * A serialization failure rolled the statement back, so running it
+       * again is always safe; after a lost connection only reads are.
+       */
+      boolean retryable(QueryClass qc) {
+         return this == SERIALIZATION || (this == CONNECTION && qc.idempotent);
+      }
+   }//end Failure
+
+   /**
+    * Thrown without touching the database while its circuit breaker is open.
+    */
+   static class CircuitOpenException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      CircuitOpenException(String database, long retryInMillis) {
+         super(String.format("Database %s is unavailable, try again in %d s", database,
+            Math.max(1, (retryInMillis + 999) / 1000)), "08000");
+      }
+   }//end CircuitOpenException
+
+   /**
+    * Thrown when an AdmissionController turns work away, before it reaches
+    * the database.
+    */
+   static class AdmissionRejectedException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      final long retryInMillis;
+
+      AdmissionRejectedException(String what, long retryInMillis) {
+         super(String.format("Too many %s in progress, try again in %d s", what,
+            Math.max(1, (retryInMillis + 999) / 1000)), "53000");
+         this.retryInMillis = retryInMillis;
+      }
+   }//end AdmissionRejectedException
+
+   /**
+    * Circuit breaker and statement counters for one database, shared by all
+    * handles on it. After -Dpizzastore.breaker.failures consecutive
+    * connection failures or timeouts the breaker opens and every statement
+    * fails fast for -Dpizzastore.breaker.openMillis; then a single trial
+    * statement decides whether it closes again.
+    */
+   static class Health {
+      private static final Map<String, Health> all = Collections.synchronizedMap(new LinkedHashMap<String, Health>());
+
+      enum State { CLOSED, OPEN, HALF_OPEN }
+
+      final String name;
+      private State state = State.CLOSED;
+      private int consecutiveFailures;
+      private long openedAt;
+      private boolean trialInFlight;
+
+      final AtomicLong statements = new AtomicLong();
+      final AtomicLong retries = new AtomicLong();
+      final AtomicLong rejected = new AtomicLong();
+      final AtomicLong opened = new AtomicLong();
+      final AtomicLongArray timeouts = new AtomicLongArray(QueryClass.values().length);
+      final AtomicLong replicaReads = new AtomicLong();
+      final AtomicLong pinnedReads = new AtomicLong();
+      final AtomicLong replicaFallbacks = new AtomicLong();
+
+      private Health(String name) {
+         this.name = name;
+      }
+
+      static Health forDatabase(String url) {
+         synchronized (all) {
+            Health h = all.get(url);
+            if (h == null) all.put(url, h = new Health(url));
+            return h;
+         }
+      }
+
+      synchronized void beforeCall() throws SQLException {
+         if (state == State.OPEN) {
+            long wait = openedAt + config("breaker.openMillis", 5000) - System.currentTimeMillis();
+            if (wait > 0) {
+               rejected.incrementAndGet();
+               throw new CircuitOpenException(name, wait);
+            }
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+         }
+         if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+               rejected.incrementAndGet();
+               throw new CircuitOpenException(name, 0);
+            }
+            trialInFlight = true;
+         }
+      }
+
+      synchronized void onSuccess() {
+         statements.incrementAndGet();
+         consecutiveFailures = 0;
+         trialInFlight = false;
+         state = State.CLOSED;
+      }
+
+      synchronized void onFailure(QueryClass qc, Failure kind) {
+         if (kind == Failure.TIMEOUT) timeouts.incrementAndGet(qc.ordinal());
+         if (kind != Failure.CONNECTION && kind != Failure.TIMEOUT) {
+            // the database answered, it is healthy even if the statement was not
+            onSuccess();
+            return;
+         }
+         statements.incrementAndGet();
+         consecutiveFailures++;
+         trialInFlight = false;
+         if (state == State.HALF_OPEN || consecutiveFailures >= config("breaker.failures", 5)) {
+            if (state != State.OPEN) opened.incrementAndGet();
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+         }
+      }
+
+      synchronized boolean isOpen() {
+         return state == State.OPEN
+            && System.currentTimeMillis() < openedAt + config("breaker.openMillis", 5000);
+      }
+
+      synchronized String describe() {
+         StringBuilder sb = new StringBuilder();
+         sb.append(String.format("%s\n\tbreaker: %s, %d consecutive failures, opened %d times, %d statements rejected\n",
+            name, state, consecutiveFailures, opened.get(), rejected.get()));
+         sb.append(String.format("\tstatements: %d, retries: %d, timeouts:", statements.get(), retries.get()));
+         for (QueryClass qc : QueryClass.values())
+            sb.append(String.format(" %s=%d", qc.name().toLowerCase(), timeouts.get(qc.ordinal())));
+         if (replicaReads.get() + pinnedReads.get() + replicaFallbacks.get() > 0)
+            sb.append(String.format("\n\treads sent to replicas: %d, kept on primary after a write: %d, replica failures: %d",
+               replicaReads.get(), pinnedReads.get(), replicaFallbacks.get()));
+         return sb.toString();
+      }
+
+      static String describeAll() {
+         StringBuilder sb = new StringBuilder();
+         synchronized (all) {
+            for (Health h : all.values())
+               sb.append(h.describe()).append('\n');
+         }
+         return sb.toString();
+      }
+   }//end Health
+
+   /**
+    * Orders in status 'placed' waiting for a driver, one queue per store,
+    * oldest first. Queues are skip-list sets so claiming the head is an
+    * atomic O(log n) pollFirst; the pending map decides which of two racing
+    * removals (a claim and a status change) wins, so an order is handed out
+    * at most once.
+    */
+   static class DispatchQueues {
+      static final class Entry implements Comparable<Entry> {
+         final int orderID;
+         final int storeID;
+         final long placedAt;
+
+         Entry(int orderID, int storeID, long placedAt) {
+            this.orderID = orderID;
+            this.storeID = storeID;
+            this.placedAt = placedAt;
+         }
+
+         public int compareTo(Entry o) {
+            int c = Long.compare(placedAt, o.placedAt);
+            return c != 0 ? c : Integer.compare(orderID, o.orderID);
+         }
+      }
+
+      private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<Entry>> queues = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<Entry>>();
+      private final ConcurrentHashMap<Integer, Entry> pending = new ConcurrentHashMap<Integer, Entry>();
+      private volatile boolean loaded = false;
+
+      boolean isLoaded() {
+         return loaded;
+      }
+
+      private ConcurrentSkipListSet<Entry> queue(int storeID) {
+         return queues.computeIfAbsent(storeID, k -> new ConcurrentSkipListSet<Entry>());
+      }
+
+      /**
+       * Queues an order unless it is already queued.
+       */
+      void add(int orderID, int storeID, long placedAt) {
+         Entry e = new Entry(orderID, storeID, placedAt);
+         if (pending.putIfAbsent(orderID, e) == null)
+            queue(storeID).add(e);
+      }
+
+      /**
+       * Drops an order that left the 'placed' status some other way.
+       */
+      void remove(int orderID) {
+         Entry e = pending.remove(orderID);
+         if (e != null) queue(e.storeID).remove(e);
+      }
+
+      /**
+       * Takes the oldest waiting order of a store.
+       * @return the claimed order, or null if none is waiting
+       */
+      Entry claim(int storeID) {
+         ConcurrentSkipListSet<Entry> q = queues.get(storeID);
+         if (q == null) return null;
+         Entry e;
+         while ((e = q.pollFirst()) != null) {
+            if (pending.remove(e.orderID, e)) return e;
+         }
+         return null;
+      }
+
+      /**
+       * Fills the queues from (orderID, storeID, orderTimestamp) rows.
+       */
+      void load(List<List<String>> rows) {
+         for (List<String> row : rows)
+            add(Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(1).trim()),
+                Timestamp.valueOf(row.get(2).trim()).getTime());
+         loaded = true;
+      }
+
+      String describe() {
+         return String.format("Dispatch\n\t%d orders waiting across %d stores%s\n",
+            pending.size(), queues.size(), loaded ? "" : " (still loading)");
+      }
+   }//end DispatchQueues
+
+   /**
+    * State of one user session (the interactive user, or one simulated user
+    * of the load generator), kept per thread.
+    */
+   static class Session {
+      private volatile long lastWriteMillis = 0;
+      // the action being traced, shared with fanOut workers
+      volatile Trace trace = null;
+
+      void wrote() {
+         lastWriteMillis = System.currentTimeMillis();
+      }
+
+      boolean wroteWithin(long millis) {
+         return System.currentTimeMillis() - lastWriteMillis < millis;
+      }
+   }//end Session
+
+   /**
+    * Compact column-oriented snapshot of FoodOrder and ItemsInOrder, so
+    * analytics can run on a file instead of the production database.
+    *
+    * Layout: magic, row groups of up to GROUP_ROWS rows (one chunk per
+    * column), the string dictionaries, an index of the row groups, and
+    * finally the dictionary and index offsets followed by the magic again.
+    * Every column chunk is a stream of varints: logins, statuses and item
+    * names as dictionary ids (0 = NULL), orderIDs and timestamps (epoch
+    * millis) as zigzag deltas to the previous row, prices as whole cents and
+    * everything else as zigzag values. NULL numbers are stored as 0. Deltas
+    * restart in every row group so each group decodes on its own.
+    */
+   static class OrderSnapshot {
+      static final byte[] MAGIC = { 'P', 'Z', 'S', 'N', 'A', 'P', 0, 1 };
+      static final int GROUP_ROWS = 65536;
+      static final int ORDERS = 0, ITEMS = 1;
+      static final int[] COLUMNS = { 6, 3 };
+      static final int LOGINS = 0, STATUSES = 1, ITEM_NAMES = 2;
+      private static final int TAIL = 8 + 8 + MAGIC.length;
+
+      /**
+       * Streams both tables, live and archived, from every shard into a
+       * snapshot file, each shard from one consistent snapshot.
+       */
+      static void export(PizzaStore esql, File file) throws SQLException, IOException {
+         final Writer writer = new Writer(file);
+         boolean ok = false;
+         try {
+            String orders = "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder ORDER BY orderID;";
+            String items = "SELECT orderID, itemName, quantity FROM ItemsInOrder ORDER BY orderID;";
+            RowHandler addOrder = row -> writer.addOrder(row);
+            RowHandler addItem = row -> writer.addItem(row);
+            boolean archive = Archiver.hasArchive(esql);
+            // one snapshot per shard, so an order the archiver moves meanwhile
+            // is exported once and items match their orders
+            for (PizzaStore shard : esql._shards) {
+               if (archive)
+                  shard.executeQueriesAndStream(QueryClass.REPORT,
+                     new String[] { orders, items, Archiver.archived(orders), Archiver.archived(items) },
+                     new RowHandler[] { addOrder, addItem, addOrder, addItem });
+               else
+                  shard.executeQueriesAndStream(QueryClass.REPORT,
+                     new String[] { orders, items }, new RowHandler[] { addOrder, addItem });
+            }
+            writer.close();
+            ok = true;
+         } finally {
+            if (!ok) {
+               writer.abort();
+               file.delete();
+            }
+         }
+      }
+
+      static void writeVarLong(ByteArrayOutputStream out, long v) {
+         while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+         }
+         out.write((int) v);
+      }
+
+      static long readVarLong(ByteBuffer in) {
+         long v = 0;
+         for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+         }
+      }
+
+      static long zigzag(long v) {
+         return (v << 1) ^ (v >> 63);
+      }
+
+      static long unzigzag(long v) {
+         return (v >>> 1) ^ -(v & 1);
+      }
+
+      /**
+       * Ids for the distinct strings of one column, 0 standing for NULL.
+       */
+      static class Dictionary {
+         private final Map<String, Integer> ids = new HashMap<String, Integer>();
+         private final List<String> values = new ArrayList<String>();
+
+         int id(String value) {
+            if (value == null) return 0;
+            Integer id = ids.get(value);
+            if (id == null) {
+               values.add(value);
+               ids.put(value, id = values.size());
+            }
+            return id;
+         }
+
+         void writeTo(ByteArrayOutputStream out) {
+            writeVarLong(out, values.size());
+            for (String value : values) {
+               byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+               writeVarLong(out, bytes.length);
+               out.write(bytes, 0, bytes.length);
+            }
+         }
+      }
+
+      /**
+       * Column chunks of the row group being filled for one table.
+       */
+      static class RowGroup {
+         final int table;
+         final ByteArrayOutputStream[] columns;
+         final long[] previous;
+         int rows;
+
+         RowGroup(int table) {
+            this.table = table;
+            this.columns = new ByteArrayOutputStream[COLUMNS[table]];
+            this.previous = new long[COLUMNS[table]];
+            for (int i = 0; i < columns.length; i++)
+               columns[i] = new ByteArrayOutputStream();
+         }
+
+         void value(int col, long v) {
+            writeVarLong(columns[col], zigzag(v));
+         }
+
+         void delta(int col, long v) {
+            writeVarLong(columns[col], zigzag(v - previous[col]));
+            previous[col] = v;
+         }
+
+         void id(int col, int id) {
+            writeVarLong(columns[col], id);
+         }
+      }
+
+      /**
+       * Appends rows as they stream in; only the current row group of each
+       * table and the dictionaries are held in memory.
+       */
+      static class Writer implements Closeable {
+         private final OutputStream out;
+         private long position = 0;
+         private final Dictionary[] dictionaries = { new Dictionary(), new Dictionary(), new Dictionary() };
+         private final RowGroup[] open = new RowGroup[2];
+         private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+         private int groups = 0;
+
+         Writer(File file) throws IOException {
+            out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            write(MAGIC);
+         }
+
+         private void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+            position += bytes.length;
+         }
+
+         private RowGroup group(int table) {
+            if (open[table] == null) open[table] = new RowGroup(table);
+            return open[table];
+         }
+
+         void addOrder(String[] row) throws IOException {
+            RowGroup g = group(ORDERS);
+            g.delta(0, parseLong(row[0]));
+            g.id(1, dictionaries[LOGINS].id(row[1]));
+            g.value(2, parseLong(row[2]));
+            g.value(3, row[3] == null ? 0 : new BigDecimal(row[3].trim()).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact());
+            g.delta(4, row[4] == null ? 0 : Timestamp.valueOf(row[4].trim()).getTime());
+            g.id(5, dictionaries[STATUSES].id(row[5] == null ? null : row[5].trim()));
+            if (++g.rows == GROUP_ROWS) flush(ORDERS);
+         }
+
+         void addItem(String[] row) throws IOException {
+            RowGroup g = group(ITEMS);
+            g.delta(0, parseLong(row[0]));
+            g.id(1, dictionaries[ITEM_NAMES].id(row[1]));
+            g.value(2, parseLong(row[2]));
+            if (++g.rows == GROUP_ROWS) flush(ITEMS);
+         }
+
+         private static long parseLong(String s) {
+            return s == null ? 0 : Long.parseLong(s.trim());
+         }
+
+         private void flush(int table) throws IOException {
+            RowGroup g = open[table];
+            if (g == null) return;
+            writeVarLong(index, table);
+            writeVarLong(index, g.rows);
+            writeVarLong(index, position);
+            for (ByteArrayOutputStream col : g.columns) {
+               writeVarLong(index, col.size());
+               col.writeTo(out);
+               position += col.size();
+            }
+            groups++;
+            open[table] = null;
+         }
+
+         public void close() throws IOException {
+            flush(ORDERS);
+            flush(ITEMS);
+            long dictionaryOffset = position;
+            ByteArrayOutputStream dicts = new ByteArrayOutputStream();
+            for (Dictionary d : dictionaries)
+               d.writeTo(dicts);
+            write(dicts.toByteArray());
+            long indexOffset = position;
+            ByteArrayOutputStream idx = new ByteArrayOutputStream();
+            writeVarLong(idx, groups);
+            index.writeTo(idx);
+            write(idx.toByteArray());
+            ByteBuffer tail = ByteBuffer.allocate(TAIL);
+            tail.putLong(dictionaryOffset).putLong(indexOffset).put(MAGIC);
+            write(tail.array());
+            out.close();
+         }
+
+         void abort() {
+            try {
+               out.close();
+            } catch (IOException e) {
+               // ignored.
+            }
+         }
+      }//end Writer
+
+      /**
+       * Called once per order row by {@link Reader#scanOrders}.
+       */
+      interface OrderVisitor {
+         void order(long orderID, String login, long storeID, long priceCents, long timestampMillis, String status);
+      }
+
+      /**
+       * Called once per order item row by {@link Reader#scanItems}.
+       */
+      interface ItemVisitor {
+         void item(long orderID, String itemName, long quantity);
+      }
+
+      /**
+       * Scans a snapshot through memory-mapped row groups.
+       */
+      static class Reader implements Closeable {
+         private final FileChannel channel;
+         private final String[][] dictionaries = new String[3][];
+         private final List<long[]> groups = new ArrayList<long[]>();   // table, rows, offset, column lengths...
+
+         Reader(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size < MAGIC.length + TAIL) throw new IOException(file + " is not an order snapshot");
+            ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, size - TAIL, TAIL);
+            long dictionaryOffset = tail.getLong();
+            long indexOffset = tail.getLong();
+            byte[] magic = new byte[MAGIC.length];
+            tail.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + " is not an order snapshot");
+
+            ByteBuffer dicts = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, indexOffset - dictionaryOffset);
+            for (int d = 0; d < dictionaries.length; d++) {
+               String[] values = new String[(int) readVarLong(dicts) + 1];
+               for (int i = 1; i < values.length; i++) {
+                  byte[] bytes = new byte[(int) readVarLong(dicts)];
+                  dicts.get(bytes);
+                  values[i] = new String(bytes, StandardCharsets.UTF_8);
+               }
+               dictionaries[d] = values;
+            }
+
+            ByteBuffer idx = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - TAIL - indexOffset);
+            long count = readVarLong(idx);
+            for (long g = 0; g < count; g++) {
+               int table = (int) readVarLong(idx);
+               long[] entry = new long[3 + COLUMNS[table]];
+               entry[0] = table;
+               entry[1] = readVarLong(idx);
+               entry[2] = readVarLong(idx);
+               for (int c = 0; c < COLUMNS[table]; c++)
+                  entry[3 + c] = readVarLong(idx);
+               groups.add(entry);
+            }
+         }
+
+         /**
+          * Maps one row group and returns a buffer positioned on each column.
+          */
+         private ByteBuffer[] columns(long[] entry) throws IOException {
+            long length = 0;
+            for (int c = 3; c < entry.length; c++)
+               length += entry[c];
+            ByteBuffer group = channel.map(FileChannel.MapMode.READ_ONLY, entry[2], length);
+            ByteBuffer[] cols = new ByteBuffer[entry.length - 3];
+            int start = 0;
+            for (int c = 0; c < cols.length; c++) {
+               ByteBuffer col = group.duplicate();
+               col.position(start);
+               col.limit(start + (int) entry[3 + c]);
+               cols[c] = col.slice();
+               start += (int) entry[3 + c];
+            }
+            return cols;
+         }
+
+         void scanOrders(OrderVisitor visitor) throws IOException {
+            for (long[] entry : groups) {
+               if (entry[0] != ORDERS) continue;
+               ByteBuffer[] c = columns(entry);
+               long orderID = 0, timestamp = 0;
+               for (long r = 0; r < entry[1]; r++) {
+                  orderID += unzigzag(readVarLong(c[0]));
+                  String login = dictionaries[LOGINS][(int) readVarLong(c[1])];
+                  long storeID = unzigzag(readVarLong(c[2]));
+                  long cents = unzigzag(readVarLong(c[3]));
+                  timestamp += unzigzag(readVarLong(c[4]));
+                  String status = dictionaries[STATUSES][(int) readVarLong(c[5])];
+                  visitor.order(orderID, login, storeID, cents, timestamp, status);
+               }
+            }
+         }
+
+         void scanItems(ItemVisitor visitor) throws IOException {
+            for (long[] entry : groups) {
+               if (entry[0] != ITEMS) continue;
+               ByteBuffer[] c = columns(entry);
+               long orderID = 0;
+               for (long r = 0; r < entry[1]; r++) {
+                  orderID += unzigzag(readVarLong(c[0]));
+                  String itemName = dictionaries[ITEM_NAMES][(int) readVarLong(c[1])];
+                  long quantity = unzigzag(readVarLong(c[2]));
+                  visitor.item(orderID, itemName, quantity);
+               }
+            }
+         }
+
+         public void close() throws IOException {
+            channel.close();
+         }
+      }//end Reader
+
+      /**
+       * Prints a short summary of a snapshot: orders per status, revenue per
+       * store and the most ordered items.
+       */
+      static void analyze(File file, PrintStream out) throws IOException {
+         final Map<String, long[]> byStatus = new TreeMap<String, long[]>();
+         final Map<Long, long[]> byStore = new TreeMap<Long, long[]>();
+         final Map<String, long[]> byItem = new HashMap<String, long[]>();
+         Reader reader = new Reader(file);
+         try {
+            reader.scanOrders((orderID, login, storeID, cents, timestamp, status) -> {
+               byStatus.computeIfAbsent(String.valueOf(status), k -> new long[1])[0]++;
+               long[] store = byStore.computeIfAbsent(storeID, k -> new long[2]);
+               store[0]++;
+               store[1] += cents;
+            });
+            reader.scanItems((orderID, itemName, quantity) ->
+               byItem.computeIfAbsent(String.valueOf(itemName), k -> new long[1])[0] += quantity);
+         } finally {
+            reader.close();
+         }
+
+         out.println("Orders by status:");
+         for (Map.Entry<String, long[]> e : byStatus.entrySet())
+            out.println(String.format("\t%s: %d", e.getKey(), e.getValue()[0]));
+         out.println("Revenue by store:");
+         for (Map.Entry<Long, long[]> e : byStore.entrySet())
+            out.println(String.format("\tStore %d: %d orders, $%d.%02d", e.getKey(), e.getValue()[0],
+               e.getValue()[1] / 100, Math.abs(e.getValue()[1] % 100)));
+         out.println("Most ordered items:");
+         List<Map.Entry<String, long[]>> items = new ArrayList<Map.Entry<String, long[]>>(byItem.entrySet());
+         items.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+         for (Map.Entry<String, long[]> e : items.subList(0, Math.min(10, items.size())))
+            out.println(String.format("\t%s: %d", e.getKey(), e.getValue()[0]));
+      }
+   }//end OrderSnapshot
+
+   /**
+    * Simple read-through cache over one table, keyed on the first column.
+    * Lookups only answer once the cache has been loaded; until then callers
+    * fall back to the database.
+    */
+   static class TableCache {
+      private final ConcurrentHashMap<String, List<String>> rows = new ConcurrentHashMap<String, List<String>>();
+      // when each row was read, only kept when rows expire
+      private final ConcurrentHashMap<String, Long> readAt = new ConcurrentHashMap<String, Long>();
+      private final long ttlMillis;
+      private volatile boolean warm = false;
+      private volatile long loadedAt = 0;
+
+      TableCache() {
+         this(0);
+      }
+
+      /**
+       * @param ttlMillis how long a row is answered from the cache before
+       *        lookups miss and go back to the database (0 = forever)
+       */
+      TableCache(long ttlMillis) {
+         this.ttlMillis = ttlMillis;
+      }
+
+      boolean isWarm() {
+         return warm;
+      }
+
+      /**
+       * Replaces the contents with a full query result and marks the cache warm.
+       */
+      void load(List<List<String>> result) {
+         Set<String> keys = new HashSet<String>();
+         for (List<String> row : result) {
+            put(row.get(0), row);
+            keys.add(row.get(0).trim());
+         }
+         rows.keySet().retainAll(keys);
+         readAt.keySet().retainAll(keys);
+         loadedAt = System.currentTimeMillis();
+         warm = true;
+      }
+
+      /**
+       * Reloads the whole table with query once the last load is older than
+       * the TTL, for callers that read all rows rather than look one up.
+       */
+      void reloadIfStale(PizzaStore esql, String query) throws SQLException {
+         if (!warm || ttlMillis <= 0 || System.currentTimeMillis() - loadedAt <= ttlMillis) return;
+         load(esql.executeQueryAndReturnResult(QueryClass.REPORT, query));
+      }
+
+      /**
+       * @return a single-row result for key, or an empty list on a miss or
+       *         while the cache is cold
+       */
+      List<List<String>> lookup(String key) {
+         List<List<String>> res = new ArrayList<List<String>>();
+         if (!warm || key == null) return res;
+         List<String> row = rows.get(key.trim());
+         if (row != null && ttlMillis > 0) {
+            Long at = readAt.get(key.trim());
+            if (at == null || System.currentTimeMillis() - at > ttlMillis) return res;
+         }
+         if (row != null) res.add(row);
+         return res;
+      }
+
+      Collection<List<String>> rows() {
+         return rows.values();
+      }
+
+      /**
+       * @return all rows ordered by their (numeric) key
+       */
+      List<List<String>> sortedRows() {
+         List<List<String>> res = new ArrayList<List<String>>(rows.values());
+         res.sort(new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               try {
+                  return Long.compare(Long.parseLong(a.get(0).trim()), Long.parseLong(b.get(0).trim()));
+               } catch (NumberFormatException e) {
+                  return a.get(0).compareTo(b.get(0));
+               }
+            }
+         });
+         return res;
+      }
+
+      void put(String key, List<String> row) {
+         if (ttlMillis > 0) readAt.put(key.trim(), System.currentTimeMillis());
+         rows.put(key.trim(), row);
+      }
+
+      void remove(String key) {
+         rows.remove(key.trim());
+         readAt.remove(key.trim());
+      }
+
+      /**
+       * Re-reads a single row after a write so the cache stays in step.
+       */
+      void refresh(PizzaStore esql, String query, String key) {
+         try {
+            List<List<String>> res = esql.executeQueryAndReturnResult(query);
+            if (res.isEmpty()) remove(key);
+            else put(key, res.get(0));
+         } catch (SQLException e) {
+            // can't tell what the row looks like now, stop answering for it
+            remove(key);
+         }
+      }
+   }//end TableCache
+
+   /**
+    * Startup work that runs off the UI thread: opening the main connection,
+    * loading the caches and reading the next orderID. Each task gets its own
+    * connection so they really run side by side. A timing line per phase is
+    * logged once everything has finished.
+    */
+   static class Warmup {
+      private final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+      private final long startNanos;
+      // completes once every warm-up task has finished (successfully or not)
+      final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+      private Warmup(long startNanos) {
+         this.startNanos = startNanos;
+      }
+
+      static Warmup start(final PizzaStore esql, long startNanos) {
+         final Warmup w = new Warmup(startNanos);
+         w.record("first prompt", startNanos);
+
+         ExecutorService pool = Executors.newFixedThreadPool(4, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "warmup");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+         List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+         tasks.add(w.phase(pool, "connect", null, new Task() {
+            public void run(PizzaStore db) throws SQLException {
+               long t = System.nanoTime();
+               loadDriver();
+               w.record("driver", t);
+               esql.getConnection();
+            }
+         }));
+         tasks.add(w.phase(pool, "menu", esql, new Task() {
+            public void run(PizzaStore db) throws SQLException {
+               menuCache.load(db.executeQueryAndReturnResult(QueryClass.REPORT, "SELECT * FROM Items;"));
+            }
+         }));
+         tasks.add(w.phase(pool, "stores", esql, new Task() {
+            public void run(PizzaStore db) throws SQLException {
+               storeCache.load(db.executeQueryAndReturnResult(QueryClass.REPORT, "SELECT * FROM Store;"));
+            }
+         }));
+         tasks.add(w.phase(pool, "users", esql, new Task() {
+            public void run(PizzaStore db) throws SQLException {
+               userCache.load(db.executeQueryAndReturnResult(QueryClass.REPORT, "SELECT login, role FROM Users;"));
+            }
+         }));
+         tasks.add(w.phase(pool, "dispatch", esql, new Task() {
+            public void run(PizzaStore db) throws SQLException {
+               List<List<String>> placed = new ArrayList<List<String>>();
+               for (List<List<String>> part : db.fanOut(shard -> shard.executeQueryOnPrimary(QueryClass.REPORT,
+                     "SELECT orderID, storeID, orderTimestamp FROM FoodOrder WHERE orderStatus = 'placed';")))
+                  placed.addAll(part);
+               dispatch.load(placed);
+            }
+         }));
+         tasks.add(w.phase(pool, "inventory", esql, new Task() {
+            public void run(PizzaStore db) throws SQLException {
+               db.executeUpdate(Inventory.CREATE);
+               inventory.sync(db);
+            }
+         }));
+         tasks.add(w.phase(pool, "orderID", esql, new Task() {
+            public void run(PizzaStore db) throws SQLException {
+               for (int shard = 0; shard < db.shardCount(); shard++)
+                  initOrderCounter(db, shard);
+            }
+         }));
+         CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            w.record("total", startNanos);
+            System.err.println("Startup timing: " + w.timings);
+            w.done.complete(null);
+         });
+         pool.shutdown();
+         return w;
+      }
+
+      interface Task {
+         void run(PizzaStore db) throws SQLException;
+      }
+
+      /**
+       * Runs one warm-up task on its own handle (when base is given) and
+       * records how long it took. Failures are logged and leave the cache cold.
+       */
+      private CompletableFuture<Void> phase(ExecutorService pool, final String name, final PizzaStore base, final Task task) {
+         return CompletableFuture.runAsync(() -> {
+            long t = System.nanoTime();
+            PizzaStore db = base == null ? null : base.newHandle();
+            try {
+               task.run(db);
+            } catch (Exception e) {
+               System.err.println("Warm-up of " + name + " failed: " + e.getMessage());
+            } finally {
+               if (db != null) db.cleanup();
+               record(name, t);
+            }
+         }, pool);
+      }
+
+      private void record(String name, long fromNanos) {
+         timings.put(name, (System.nanoTime() - fromNanos) / 1000000);
+      }
+   }//end Warmup
+
+   /**
+    * Keyboard reader that can be handed a script of input lines for the
+    * current thread. Without a script it reads from the console as usual;
+    * with one, readLine() returns the scripted lines and then null.
+    */
+   static class ScriptedReader extends BufferedReader {
+      private static final ThreadLocal<Deque<String>> script = new ThreadLocal<Deque<String>>();
+
+      ScriptedReader(Reader reader) {
+         super(reader);
+      }
+
+      static void feed(String... lines) {
+         script.set(new ArrayDeque<String>(Arrays.asList(lines)));
+      }
+
+      static void clear() {
+         script.remove();
+      }
+
+      @Override
+      public String readLine() throws IOException {
+         Deque<String> lines = script.get();
+         if (lines == null) return super.readLine();
+         return lines.poll();
+      }
+   }//end ScriptedReader
+
+   /**
+    * Load-generator mode. Simulated customers, drivers and managers each get
+    * their own database handle and run a weighted mix of actions through the
+    * same methods the menu calls, with their keyboard input scripted. At the
+    * end throughput, latency percentiles and errors are reported per action.
+    *
+    * Options (key=value after "loadgen"):
+    *   customers, drivers, managers  number of simulated users per role
+    *   duration                      run time in seconds
+    *   rate                          actions/second per user (open loop); 0 = closed loop
+    *   think                         mean think time in ms between actions (closed loop)
+    *   mix.customer, mix.driver, mix.manager
+    *                                 weighted action mix, e.g. viewMenu:4,placeOrder:1
+    *   statuses                      order statuses drivers/managers set, comma separated
+    *   schema                        SQL file to run first (e.g. for an embedded database)
+    *   seed                          number of stores/items to insert before the run
+    *   warmup                        wait for the startup warm-up before measuring
+    */
+   static class LoadGenerator {
+      static final String[] ACTIONS = { "login", "viewMenu", "viewStores", "placeOrder",
+         "viewAllOrders", "viewRecentOrders", "viewOrderInfo", "updateOrderStatus", "claimOrder" };
+
+      private final Map<String, String> opts = new LinkedHashMap<String, String>();
+      private final Map<String, ActionStats> stats = new LinkedHashMap<String, ActionStats>();
+      private final List<String> storeIDs = new ArrayList<String>();
+      private final List<String[]> items = new ArrayList<String[]>();
+      private final List<String> knownOrders = new ArrayList<String>();
+      private final String[] statuses;
+      private volatile long deadline;
+
+      private LoadGenerator(String[] args) {
+         opts.put("customers", "20");
+         opts.put("drivers", "3");
+         opts.put("managers", "1");
+         opts.put("duration", "60");
+         opts.put("rate", "0");
+         opts.put("think", "200");
+         opts.put("mix.customer", "login:1,viewMenu:4,viewStores:1,placeOrder:2,viewRecentOrders:2,viewOrderInfo:1");
+         opts.put("mix.driver", "login:1,viewRecentOrders:2,viewOrderInfo:2,updateOrderStatus:2,claimOrder:2");
+         opts.put("mix.manager", "login:1,viewMenu:1,viewAllOrders:1,viewRecentOrders:2,viewOrderInfo:2,updateOrderStatus:1");
+         opts.put("statuses", "in progress,delivered");
+         opts.put("schema", "");
+         opts.put("seed", "0");
+         opts.put("warmup", "true");
+         for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !opts.containsKey(arg.substring(0, eq)))
+               throw new IllegalArgumentException("Unknown load generator option: " + arg + ", known: " + opts.keySet());
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+         }
+         for (String action : ACTIONS)
+            stats.put(action, new ActionStats());
+         statuses = opts.get("statuses").split(",");
+      }
+
+      private int intOpt(String key) {
+         return Integer.parseInt(opts.get(key).trim());
+      }
+
+      static void run(PizzaStore esql, Warmup warmup, String[] args) throws Exception {
+         LoadGenerator gen = new LoadGenerator(args);
+         gen.prepare(esql);
+         if (Boolean.parseBoolean(gen.opts.get("warmup")))
+            warmup.done.join();
+         gen.execute(esql);
+         gen.report(System.out);
+         System.out.println(Health.describeAll());
+         System.out.println(ResourceTracker.describe());
+         System.out.println(Trace.describe());
+      }
+
+      /**
+       * Creates schema, seed data and the simulated users, then loads the
+       * stores, items and orders the scripts pick from.
+       */
+      private void prepare(PizzaStore esql) throws Exception {
+         if (!opts.get("schema").isEmpty()) {
+            StringBuilder sql = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new FileReader(new File(opts.get("schema"))));
+            try {
+               String line;
+               while ((line = reader.readLine()) != null)
+                  sql.append(line).append('\n');
+            } finally {
+               reader.close();
+            }
+            for (String stmt : sql.toString().split(";"))
+               if (!stmt.trim().isEmpty()) esql.executeUpdate(stmt);
+         }
+
+         int seed = intOpt("seed");
+         for (int i = 1; i <= seed; i++) {
+            insertIgnoringDuplicates(esql, String.format(
+               "INSERT INTO Store VALUES (%d, '%d Loadgen Way', 'Riverside', 'CA', 'yes', 4.5);", 9000 + i, i));
+            insertIgnoringDuplicates(esql, String.format(
+               "INSERT INTO Items VALUES ('Loadgen Item %d', 'dough, cheese', '%s', %d.99, 'generated for load tests');",
+               i, i % 2 == 0 ? "entree" : "sides", 3 + i % 10));
+         }
+         for (String role : ROLES)
+            for (int i = 0; i < intOpt(role + "s"); i++)
+               insertIgnoringDuplicates(esql, String.format(
+                  "INSERT INTO Users VALUES ('%s', 'loadgen', '%s', NULL, '555-0100');", userName(role, i), role));
+
+         for (List<String> row : esql.executeQueryAndReturnResult("SELECT storeID FROM Store;"))
+            storeIDs.add(row.get(0).trim());
+         for (List<String> row : esql.executeQueryAndReturnResult("SELECT itemName, typeOfItem FROM Items;"))
+            items.add(new String[] { row.get(0), row.get(1).trim() });
+         for (List<List<String>> part : esql.fanOut(shard -> shard.executeQueryAndReturnResult(
+               "SELECT orderID FROM FoodOrder ORDER BY orderID DESC LIMIT 1000;")))
+            for (List<String> row : part)
+               knownOrders.add(row.get(0).trim());
+         if (storeIDs.isEmpty() || items.isEmpty())
+            throw new SQLException("Load generator needs at least one store and one item, run with seed=<n>");
+      }
+
+      private static final String[] ROLES = { "customer", "driver", "manager" };
+
+      private static void insertIgnoringDuplicates(PizzaStore esql, String sql) {
+         try {
+            esql.executeUpdate(sql);
+         } catch (SQLException e) {
+            // already there from an earlier run
+         }
+      }
+
+      private static String userName(String role, int i) {
+         return "loadgen_" + role + "_" + i;
+      }
+
+      /**
+       * Runs all simulated users until the configured duration is over. The
+       * actions' console output is discarded while the run is in progress.
+       */
+      private void execute(PizzaStore esql) throws InterruptedException {
+         List<Thread> threads = new ArrayList<Thread>();
+         for (String role : ROLES) {
+            Mix mix = new Mix(opts.get("mix." + role));
+            for (int i = 0; i < intOpt(role + "s"); i++) {
+               Thread t = new Thread(new VirtualUser(esql.newHandle(), role, userName(role, i), mix), userName(role, i));
+               t.setDaemon(true);
+               threads.add(t);
+            }
+         }
+
+         PrintStream out = System.out, err = System.err;
+         PrintStream discard = new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+         });
+         System.setOut(discard);
+         System.setErr(discard);
+         try {
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(intOpt("duration"));
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) t.join();
+         } finally {
+            System.setOut(out);
+            System.setErr(err);
+         }
+      }
+
+      private void report(PrintStream out) {
+         double seconds = intOpt("duration");
+         out.println(String.format("%-18s %8s %7s %9s %9s %9s %9s %9s",
+            "action", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+         for (Map.Entry<String, ActionStats> e : stats.entrySet()) {
+            ActionStats s = e.getValue();
+            synchronized (s) {
+               if (s.count == 0) continue;
+               long[] sorted = Arrays.copyOf(s.nanos, s.count);
+               Arrays.sort(sorted);
+               out.println(String.format("%-18s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f",
+                  e.getKey(), s.count, s.errors, s.count / seconds,
+                  percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[s.count - 1] / 1e6));
+            }
+         }
+      }
+
+      private static double percentile(long[] sorted, int p) {
+         int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+         return sorted[Math.max(0, idx)] / 1e6;
+      }
+
+      private synchronized void addKnownOrder(String orderID) {
+         knownOrders.add(orderID);
+      }
+
+      private synchronized String anyKnownOrder(Random rnd) {
+         return knownOrders.isEmpty() ? "0" : knownOrders.get(rnd.nextInt(knownOrders.size()));
+      }
+
+      /**
+       * Latencies and error count of one action across all users.
+       */
+      static class ActionStats {
+         long[] nanos = new long[1024];
+         int count;
+         int errors;
+
+         synchronized void record(long elapsed, boolean failed) {
+            if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = elapsed;
+            if (failed) errors++;
+         }
+      }
+
+      /**
+       * Weighted choice over action names, parsed from "name:weight,...".
+       */
+      static class Mix {
+         private final String[] names;
+         private final int[] cumulative;
+
+         Mix(String spec) {
+            String[] parts = spec.split(",");
+            names = new String[parts.length];
+            cumulative = new int[parts.length];
+            int total = 0;
+            for (int i = 0; i < parts.length; i++) {
+               String[] kv = parts[i].trim().split(":");
+               if (!Arrays.asList(ACTIONS).contains(kv[0]))
+                  throw new IllegalArgumentException("Unknown action in mix: " + kv[0]);
+               names[i] = kv[0];
+               total += kv.length > 1 ? Integer.parseInt(kv[1]) : 1;
+               cumulative[i] = total;
+            }
+         }
+
+         String pick(Random rnd) {
+            int r = rnd.nextInt(cumulative[cumulative.length - 1]);
+            for (int i = 0; i < cumulative.length; i++)
+               if (r < cumulative[i]) return names[i];
+            return names[names.length - 1];
+         }
+      }
+
+      /**
+       * One simulated user: logs in, then picks actions from its mix until
+       * the run is over, either at a fixed arrival rate or with think times.
+       */
+      class VirtualUser implements Runnable {
+         private final PizzaStore db;
+         private final String role;
+         private final String login;
+         private final Mix mix;
+         private final List<String> ownOrders = new ArrayList<String>();
+         private final Random rnd = new Random();
+
+         VirtualUser(PizzaStore db, String role, String login, Mix mix) {
+            this.db = db;
+            this.role = role;
+            this.login = login;
+            this.mix = mix;
+         }
+
+         public void run() {
+            double rate = Double.parseDouble(opts.get("rate"));
+            double think = Double.parseDouble(opts.get("think"));
+            try {
+               perform("login", System.nanoTime());
+               long next = System.nanoTime();
+               while (System.nanoTime() < deadline) {
+                  long scheduled = System.nanoTime();
+                  if (rate > 0) {
+                     // Poisson arrivals on a fixed schedule: a slow action doesn't push
+                     // the next arrival back, and latency counts from the scheduled
+                     // time, so queueing behind a slow action shows up in the results
+                     next += (long) exponential(1e9 / rate);
+                     if (next >= deadline) break;
+                     sleepUntil(next);
+                     scheduled = next;
+                  }
+                  perform(mix.pick(rnd), scheduled);
+                  if (rate <= 0 && think > 0)
+                     sleepUntil(System.nanoTime() + (long) (exponential(think) * 1e6));
+               }
+            } catch (InterruptedException e) {
+               // run aborted
+            } finally {
+               db.cleanup();
+            }
+         }
+
+         private double exponential(double mean) {
+            return -mean * Math.log(1 - rnd.nextDouble());
+         }
+
+         private void sleepUntil(long nanos) throws InterruptedException {
+            long wait = Math.min(nanos, deadline) - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+         }
+
+         /**
+          * Runs one action and records its latency from startNanos, when it
+          * was due to start.
+          */
+         private void perform(String action, long startNanos) {
+            // customers can only look at their own orders
+            if (action.equals("viewOrderInfo") && role.equals("customer") && ownOrders.isEmpty())
+               action = "placeOrder";
+
+            lastError.remove();
+            lastOrderID.remove();
+            boolean failed = false;
+            Trace.begin(action);
+            try {
+               invoke(action);
+            } catch (Exception e) {
+               failed = true;
+            } finally {
+               Trace.end();
+               ScriptedReader.clear();
+            }
+            long elapsed = System.nanoTime() - startNanos;
+            failed |= lastError.get() != null;
+            stats.get(action).record(elapsed, failed);
+
+            if (action.equals("placeOrder") && !failed && lastOrderID.get() != null) {
+               String id = String.valueOf(lastOrderID.get());
+               ownOrders.add(id);
+               addKnownOrder(id);
+            }
+         }
+
+         private void invoke(String action) throws Exception {
+            String[] item = items.get(rnd.nextInt(items.size()));
+            switch (action) {
+               case "login":
+                  ScriptedReader.feed(login, "loadgen");
+                  if (LogIn(db) == null) throw new SQLException("login failed for " + login);
+                  break;
+               case "viewMenu":
+                  ScriptedReader.feed(item[1], String.valueOf(5 + rnd.nextInt(30)), rnd.nextBoolean() ? "asc" : "");
+                  viewMenu(db);
+                  break;
+               case "viewStores":
+                  viewStores(db);
+                  break;
+               case "placeOrder":
+                  // store, one item and its quantity, then "no more items"
+                  ScriptedReader.feed(storeIDs.get(rnd.nextInt(storeIDs.size())), item[0],
+                     String.valueOf(1 + rnd.nextInt(3)), "2");
+                  placeOrder(db, login);
+                  break;
+               case "viewAllOrders":
+                  viewAllOrders(db, login);
+                  break;
+               case "viewRecentOrders":
+                  viewRecentOrders(db, login);
+                  break;
+               case "viewOrderInfo":
+                  ScriptedReader.feed(role.equals("customer")
+                     ? ownOrders.get(rnd.nextInt(ownOrders.size())) : anyKnownOrder(rnd));
+                  viewOrderInfo(db, login);
+                  break;
+               case "updateOrderStatus":
+                  ScriptedReader.feed(anyKnownOrder(rnd), statuses[rnd.nextInt(statuses.length)].trim());
+                  updateOrderStatus(db, login);
+                  break;
+               case "claimOrder":
+                  ScriptedReader.feed(storeIDs.get(rnd.nextInt(storeIDs.size())));
+                  claimNextOrder(db, login);
+                  break;
+               default:
+                  throw new IllegalArgumentException(action);
+            }
+         }
+      }//end VirtualUser
+   }//end LoadGenerator
+
+   /**
+    * Moves orders that reached a terminal status (-Dpizzastore.archive.statuses)
+    * more than -Dpizzastore.archive.ageDays ago out of FoodOrder and
+    * ItemsInOrder into FoodOrderArchive and ItemsInOrderArchive, so the live
+    * tables and their indexes only hold the working set. Runs on its own
+    * handle, one shard at a time, when -Dpizzastore.archive=true.
+    *
+    * Every batch is one short transaction over at most archive.batchSize
+    * orders. The batch is picked with FOR UPDATE SKIP LOCKED, so the
+    * archiver never waits on rows live traffic is touching and only ever
+    * locks the rows it moves; batches are spaced archive.pauseMillis apart.
+    */
+   static class Archiver implements Runnable {
+      static final AtomicLong ordersMoved = new AtomicLong();
+      static final AtomicLong batches = new AtomicLong();
+      static final AtomicLong failures = new AtomicLong();
+      private static volatile Boolean present = null;
+      private static volatile long checkedAt = 0;
+      private static volatile boolean running = false;
+      private static volatile String lastError = null;
+
+      private final PizzaStore db;
+      private final int batchSize = config("archive.batchSize", 200);
+      private final long pauseMillis = config("archive.pauseMillis", 200);
+      private final long idleMillis = config("archive.idleSeconds", 300) * 1000L;
+      private final String select;
+
+      private Archiver(PizzaStore db) {
+         this.db = db;
+         StringBuilder statuses = new StringBuilder();
+         for (String s : config("archive.statuses", "delivered,cancelled").split(",")) {
+            if (s.trim().isEmpty()) continue;
+            if (statuses.length() > 0) statuses.append(", ");
+            statuses.append('\'').append(s.trim().replace("'", "''")).append('\'');
+         }
+         this.select = String.format(
+            "SELECT orderID FROM FoodOrder WHERE orderStatus IN (%s) AND orderTimestamp < NOW() - INTERVAL '%d days' " +
+            "ORDER BY orderID LIMIT %d FOR UPDATE SKIP LOCKED;",
+            statuses, config("archive.ageDays", 30), batchSize);
+      }
+
+      /**
+       * Starts the archiver thread if archiving is enabled.
+       */
+      static void start(PizzaStore esql) {
+         if (!Boolean.parseBoolean(config("archive", "false")))
+            return;
+         Thread t = new Thread(new Archiver(esql.newHandle()), "archiver");
+         t.setDaemon(true);
+         t.start();
+      }
+
+      /**
+       * Rewrites a query on the live order tables to the archive tables.
+       */
+      static String archived(String query) {
+         return query.replaceAll("\\bFoodOrder\\b", "FoodOrderArchive")
+                     .replaceAll("\\bItemsInOrder\\b", "ItemsInOrderArchive");
+      }
+
+      /**
+       * Whether the archive tables exist on every shard, read from the
+       * catalog. Once they exist that is final; while they don't, the
+       * catalog is asked again at most every archive.recheckSeconds, in case
+       * an archiver in another client creates them.
+       */
+      static boolean hasArchive(PizzaStore esql) {
+         if (present == Boolean.TRUE) return true;
+         long now = System.currentTimeMillis();
+         if (present != null && now - checkedAt < config("archive.recheckSeconds", 60) * 1000L) return false;
+         checkedAt = now;
+         for (PizzaStore shard : esql._shards) {
+            try {
+               List<List<String>> res = shard.executeQueryOnPrimary(QueryClass.READ,
+                  "SELECT COUNT(*) FROM pg_class WHERE relname IN ('foodorderarchive', 'itemsinorderarchive') AND relkind = 'r';");
+               if (Integer.parseInt(res.get(0).get(0).trim()) < 2) {
+                  present = false;
+                  return false;
+               }
+            } catch (SQLException e) {
+               // unknown, ask again next time
+               return false;
+            }
+         }
+         present = true;
+         return true;
+      }
+
+      /**
+       * Runs a query on one shard against the live tables and, if archive
+       * is set, against the archive tables as well.
+       */
+      static List<List<String>> withArchived(PizzaStore shard, QueryClass qc, String query, boolean archive) throws SQLException {
+         List<List<String>> rows = shard.executeQueryAndReturnResult(qc, query);
+         if (archive)
+            rows.addAll(shard.executeQueryAndReturnResult(qc, archived(query)));
+         return rows;
+      }
+
+      public void run() {
+         running = true;
+         try {
+            for (PizzaStore shard : db._shards) {
+               shard.executeUpdate("CREATE TABLE IF NOT EXISTS FoodOrderArchive (LIKE FoodOrder INCLUDING ALL);");
+               shard.executeUpdate("CREATE TABLE IF NOT EXISTS ItemsInOrderArchive (LIKE ItemsInOrder INCLUDING ALL);");
+            }
+            present = true;
+         } catch (SQLException e) {
+            lastError = e.getMessage();
+            running = false;
+            return;
+         }
+         while (true) {
+            try {
+               for (PizzaStore shard : db._shards) {
+                  while (moveBatch(shard) == batchSize)
+                     Thread.sleep(pauseMillis);
+               }
+               Thread.sleep(idleMillis);
+            } catch (InterruptedException e) {
+               running = false;
+               return;
+            } catch (SQLException e) {
+               failures.incrementAndGet();
+               lastError = e.getMessage();
+               try {
+                  Thread.sleep(idleMillis);
+               } catch (InterruptedException ie) {
+                  running = false;
+                  return;
+               }
+            }
+         }
+      }
+
+      /**
+       * Moves one batch of orders on a shard in a single transaction.
+       * Statements run as WRITE so a lost connection is never retried on a
+       * fresh, auto-committing one halfway through the batch.
+       * @return the number of orders moved
+       */
+      int moveBatch(PizzaStore shard) throws SQLException {
+         int moved = shard.executeInTransaction(db -> {
+            List<List<String>> ids = db.executeQueryOnPrimary(QueryClass.WRITE, select);
+            if (ids.isEmpty()) return 0;
+            StringBuilder in = new StringBuilder();
+            for (List<String> row : ids) {
+               if (in.length() > 0) in.append(", ");
+               in.append(row.get(0).trim());
+            }
+            db.executeUpdate(String.format("INSERT INTO FoodOrderArchive SELECT * FROM FoodOrder WHERE orderID IN (%s);", in));
+            db.executeUpdate(String.format("INSERT INTO ItemsInOrderArchive SELECT * FROM ItemsInOrder WHERE orderID IN (%s);", in));
+            db.executeUpdate(String.format("DELETE FROM ItemsInOrder WHERE orderID IN (%s);", in));
+            db.executeUpdate(String.format("DELETE FROM FoodOrder WHERE orderID IN (%s);", in));
+            return ids.size();
+         });
+         if (moved > 0) {
+            batches.incrementAndGet();
+            ordersMoved.addAndGet(moved);
+         }
+         return moved;
+      }
+
+      static String describe() {
+         if (!running && ordersMoved.get() == 0 && lastError == null)
+            return "Archiver\n\tnot running\n";
+         return String.format("Archiver\n\t%s, %d orders archived in %d batches, %d failed sweeps%s\n",
+            running ? "running" : "stopped", ordersMoved.get(), batches.get(), failures.get(),
+            lastError == null ? "" : ", last error: " + lastError);
+      }
+   }//end Archiver
+
+   /**
+    * Span of one user action (a menu entry, or a load generator action):
+    * every statement it ran, on which database, how long it took and how
+    * many rows and bytes it fetched. Statements the client adds on its own
+    * (the SET on a new connection, COMMIT and ROLLBACK) are recorded too.
+    * The span lives in the Session, so statements run by fanOut workers
+    * land in it too.
+    *
+    * Finished spans feed per-action totals (round trips per action is the
+    * number to watch; a call that streams through a cursor makes several). A fraction -Dpizzastore.trace.sample
+    * (default 0) is also written to stderr as one JSON line.
+    */
+   static class Trace {
+      static final class Call {
+         final String db;
+         final QueryClass qc;
+         final String sql;
+         final long offsetNanos;
+         final long nanos;
+         final int rows;
+         final long bytes;
+         final int trips;
+         final boolean ok;
+
+         Call(String db, QueryClass qc, String sql, long offsetNanos, long nanos, int rows, long bytes, int trips, boolean ok) {
+            this.db = db;
+            this.qc = qc;
+            this.sql = sql;
+            this.offsetNanos = offsetNanos;
+            this.nanos = nanos;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.trips = trips;
+            this.ok = ok;
+         }
+      }
+
+      /**
+       * Running totals of one action.
+       */
+      static final class Totals {
+         final AtomicLong actions = new AtomicLong();
+         final AtomicLong trips = new AtomicLong();
+         final AtomicLong maxTrips = new AtomicLong();
+         final AtomicLong rows = new AtomicLong();
+         final AtomicLong bytes = new AtomicLong();
+         final AtomicLong dbNanos = new AtomicLong();
+         final AtomicLong nanos = new AtomicLong();
+      }
+
+      private static final Map<String, Totals> totals = new ConcurrentHashMap<String, Totals>();
+      private static final double SAMPLE = Double.parseDouble(config("trace.sample", "0"));
+
+      final String action;
+      final long startNanos = System.nanoTime();
+      private final List<Call> calls = Collections.synchronizedList(new ArrayList<Call>());
+
+      private Trace(String action) {
+         this.action = action;
+      }
+
+      /**
+       * Opens a span for an action on this thread's session; null opens none.
+       */
+      static void begin(String action) {
+         session.get().trace = action == null ? null : new Trace(action);
+      }
+
+      /**
+       * Closes the session's span, adds it to the totals and maybe prints it.
+       */
+      static void end() {
+         Session s = session.get();
+         Trace t = s.trace;
+         if (t == null) return;
+         s.trace = null;
+         t.finish(System.nanoTime() - t.startNanos);
+      }
+
+      /**
+       * Adds a statement to the span of the session running it, if any.
+       */
+      static void record(String db, QueryClass qc, String sql, long started, TrackedStatement stmt, boolean ok) {
+         record(db, qc, sql, started, stmt.rows, stmt.bytes, Math.max(1, stmt.trips), ok);
+      }
+
+      /**
+       * Adds a statement that returns nothing, such as COMMIT; qc is null
+       * for statements that belong to the connection rather than a query.
+       */
+      static void record(String db, QueryClass qc, String sql, long started, boolean ok) {
+         record(db, qc, sql, started, 0, 0, 1, ok);
+      }
+
+      private static void record(String db, QueryClass qc, String sql, long started, int rows, long bytes, int trips, boolean ok) {
+         Trace t = session.get().trace;
+         if (t == null) return;
+         long now = System.nanoTime();
+         t.calls.add(new Call(db, qc, sql, started - t.startNanos, now - started, rows, bytes, trips, ok));
+      }
+
+      private void finish(long elapsed) {
+         Totals sum = totals.computeIfAbsent(action, k -> new Totals());
+         long rows = 0, bytes = 0, dbNanos = 0, trips = 0;
+         List<Call> done;
+         synchronized (calls) {
+            done = new ArrayList<Call>(calls);
+         }
+         for (Call c : done) {
+            rows += c.rows;
+            bytes += c.bytes;
+            dbNanos += c.nanos;
+            trips += c.trips;
+         }
+         sum.actions.incrementAndGet();
+         sum.trips.addAndGet(trips);
+         sum.maxTrips.accumulateAndGet(trips, Math::max);
+         sum.rows.addAndGet(rows);
+         sum.bytes.addAndGet(bytes);
+         sum.dbNanos.addAndGet(dbNanos);
+         sum.nanos.addAndGet(elapsed);
+         if (SAMPLE > 0 && ThreadLocalRandom.current().nextDouble() < SAMPLE)
+            System.err.println(toJson(elapsed, done, rows, bytes, trips));
+      }
+
+      private String toJson(long elapsed, List<Call> done, long rows, long bytes, long trips) {
+         StringBuilder sb = new StringBuilder();
+         sb.append("{\"action\":").append(quote(action))
+           .append(",\"ms\":").append(String.format("%.3f", elapsed / 1e6))
+           .append(",\"statements\":").append(done.size())
+           .append(",\"trips\":").append(trips)
+           .append(",\"rows\":").append(rows)
+           .append(",\"bytes\":").append(bytes)
+           .append(",\"calls\":[");
+         for (int i = 0; i < done.size(); i++) {
+            Call c = done.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"db\":").append(quote(c.db))
+              .append(",\"class\":\"").append(c.qc == null ? "connection" : c.qc.name().toLowerCase()).append('"')
+              .append(",\"at_ms\":").append(String.format("%.3f", c.offsetNanos / 1e6))
+              .append(",\"ms\":").append(String.format("%.3f", c.nanos / 1e6))
+              .append(",\"rows\":").append(c.rows)
+              .append(",\"bytes\":").append(c.bytes)
+              .append(",\"trips\":").append(c.trips)
+              .append(",\"ok\":").append(c.ok)
+              .append(",\"sql\":").append(quote(c.sql)).append('}');
+         }
+         return sb.append("]}").toString();
+      }
+
+      static String quote(String s) {
+         StringBuilder sb = new StringBuilder("\"");
+         for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+               case '"': sb.append("\\\""); break;
+               case '\\': sb.append("\\\\"); break;
+               case '\n': sb.append("\\n"); break;
+               case '\r': sb.append("\\r"); break;
+               case '\t': sb.append("\\t"); break;
+               default:
+                  if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+                  else sb.append(ch);
+            }
+         }
+         return sb.append('"').toString();
+      }
+
+      static String describe() {
+         StringBuilder sb = new StringBuilder("Queries per action\n");
+         sb.append(String.format("\t%-18s %8s %9s %9s %9s %11s %9s %9s\n",
+            "action", "count", "trips/op", "max", "rows/op", "bytes/op", "db ms/op", "ms/op"));
+         for (Map.Entry<String, Totals> e : new TreeMap<String, Totals>(totals).entrySet()) {
+            Totals t = e.getValue();
+            double n = Math.max(1, t.actions.get());
+            sb.append(String.format("\t%-18s %8d %9.1f %9d %9.1f %11.0f %9.2f %9.2f\n",
+               e.getKey(), t.actions.get(), t.trips.get() / n, t.maxTrips.get(),
+               t.rows.get() / n, t.bytes.get() / n, t.dbNanos.get() / n / 1e6, t.nanos.get() / n / 1e6));
+         }
+         return sb.toString();
+      }
+   }//end Trace
+
+   /**
+    * Admission control in front of expensive work. At most `limit` permits
+    * are out at once, and at most -Dpizzastore.admission.<name>.perStore per
+    * store (0 for no per-store limit). Work that doesn't fit waits in a
+    * queue of admission.<name>.queue, for up to admission.<name>.maxWaitMillis.
+    * When the queue is full or the wait runs out, the work is rejected
+    * right away with a retry hint.
+    *
+    * The limit adapts to how long permits are held, which is time spent in
+    * the database (AIMD). It grows by 1/limit per permit that finished
+    * within admission.<name>.targetMillis. It shrinks by a tenth, at most
+    * once per target interval, when a permit took longer. It always stays
+    * between admission.<name>.minLimit and admission.<name>.maxLimit.
+    */
+   static class AdmissionController {
+      final String name;
+      private final int perStore;
+      private final int maxQueue;
+      private final long maxWaitMillis;
+      private final long targetNanos;
+      private final double minLimit;
+      private final double maxLimit;
+
+      private double limit;
+      private int inFlight = 0;
+      private int waiting = 0;
+      private final Map<Integer, Integer> perStoreInFlight = new HashMap<Integer, Integer>();
+      private long lastDecrease = 0;
+      private double avgNanos = 0;
+
+      final AtomicLong admitted = new AtomicLong();
+      final AtomicLong queued = new AtomicLong();
+      final AtomicLong rejected = new AtomicLong();
+
+      AdmissionController(String name, int limit, int perStore) {
+         this.name = name;
+         String prefix = "admission." + name + ".";
+         this.limit = config(prefix + "limit", limit);
+         this.perStore = config(prefix + "perStore", perStore);
+         this.maxQueue = config(prefix + "queue", 64);
+         this.maxWaitMillis = config(prefix + "maxWaitMillis", 2000);
+         this.targetNanos = config(prefix + "targetMillis", 250) * 1000000L;
+         this.minLimit = config(prefix + "minLimit", 1);
+         this.maxLimit = config(prefix + "maxLimit", Math.max(limit, 64));
+      }
+
+      /**
+       * Held while the admitted work runs; closing it lets the next one in.
+       */
+      final class Permit implements AutoCloseable {
+         private final int storeID;
+         private final long startNanos = System.nanoTime();
+
+         private Permit(int storeID) {
+            this.storeID = storeID;
+         }
+
+         @Override
+         public void close() {
+            release(storeID, System.nanoTime() - startNanos);
+         }
+      }
+
+      private boolean fits(int storeID) {
+         if (inFlight >= (int) limit) return false;
+         if (perStore <= 0 || storeID < 0) return true;
+         Integer n = perStoreInFlight.get(storeID);
+         return n == null || n < perStore;
+      }
+
+      /**
+       * Waits for room for one more piece of work for a store (-1 for work
+       * that belongs to no store).
+       * @throws AdmissionRejectedException when the queue is full or the
+       *         wait ran out
+       */
+      synchronized Permit acquire(int storeID) throws AdmissionRejectedException {
+         if (!fits(storeID)) {
+            if (waiting >= maxQueue) throw reject();
+            queued.incrementAndGet();
+            long deadline = System.currentTimeMillis() + maxWaitMillis;
+            waiting++;
+            try {
+               while (!fits(storeID)) {
+                  long remaining = deadline - System.currentTimeMillis();
+                  if (remaining <= 0) throw reject();
+                  wait(remaining);
+               }
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw reject();
+            } finally {
+               waiting--;
+            }
+         }
+         inFlight++;
+         if (storeID >= 0) perStoreInFlight.merge(storeID, 1, Integer::sum);
+         admitted.incrementAndGet();
+         return new Permit(storeID);
+      }
+
+      private AdmissionRejectedException reject() {
+         rejected.incrementAndGet();
+         // time for the work ahead to drain at the current rate
+         double perPermit = avgNanos > 0 ? avgNanos / 1e6 : 100;
+         long retry = (long) ((waiting + inFlight + 1) * perPermit / Math.max(1, limit));
+         return new AdmissionRejectedException(name, Math.max(100, retry));
+      }
+
+      private synchronized void release(int storeID, long nanos) {
+         inFlight--;
+         if (storeID >= 0) perStoreInFlight.merge(storeID, -1, (a, b) -> a + b == 0 ? null : a + b);
+         avgNanos = avgNanos == 0 ? nanos : avgNanos * 0.9 + nanos * 0.1;
+         long now = System.nanoTime();
+         if (nanos > targetNanos) {
+            if (now - lastDecrease > targetNanos) {
+               limit = Math.max(minLimit, limit * 0.9);
+               lastDecrease = now;
+            }
+         } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+         }
+         notifyAll();
+      }
+
+      synchronized String describe() {
+         return String.format("Admission (%s)\n\tlimit %.1f, %d in flight, %d waiting, avg %.1f ms; admitted %d, queued %d, rejected %d\n",
+            name, limit, inFlight, waiting, avgNanos / 1e6, admitted.get(), queued.get(), rejected.get());
+      }
+   }//end AdmissionController
+
+   /**
+    * Stock of each item per store, kept in memory so placing an order never
+    * waits on the database to check it. Every (store, item) has its own
+    * counter that is changed with compare-and-set, so orders at the same
+    * store only contend when they want the same item. Items without an
+    * Inventory row are not tracked and never run out.
+    *
+    * Stock reserved for an order being built is held in memory only; it
+    * becomes a change to write once the order commits and goes back when the
+    * order is abandoned, so a client that dies mid-order leaves the database
+    * alone. Changes are remembered as deltas and written back by a background
+    * flusher every -Dpizzastore.inventory.flushMillis, as batched upserts
+    * that add the deltas. After each flush the counters move by however much
+    * the database level changed beyond what this client wrote, so decrements
+    * and restocks made by other clients show up within one interval. Each
+    * client only checks its own counters, so two clients can still hand out
+    * the same last units within that interval; the overselling is bounded
+    * by it, not ruled out. Until the first load, a counter missing from
+    * memory is read from the database on each use.
+    */
+   static class Inventory {
+      static final String CREATE =
+         "CREATE TABLE IF NOT EXISTS Inventory (storeID INTEGER NOT NULL, itemName CHAR(50) NOT NULL, " +
+         "stock INTEGER NOT NULL, PRIMARY KEY (storeID, itemName));";
+
+      static final class Stock {
+         final int storeID;
+         final String itemName;
+         // units this client may still hand out, reservations taken off
+         private final AtomicInteger level;
+         // committed change not yet written to the database
+         private final AtomicInteger unflushed = new AtomicInteger();
+         // the database level as last read plus what this client wrote
+         // since; only touched under the Inventory lock
+         private int expected;
+
+         Stock(int storeID, String itemName, int level) {
+            this.storeID = storeID;
+            this.itemName = itemName;
+            this.level = new AtomicInteger(level);
+            this.expected = level;
+         }
+
+         int level() {
+            return level.get();
+         }
+
+         /**
+          * Holds quantity units if that many are left.
+          */
+         boolean take(int quantity) {
+            while (true) {
+               int l = level.get();
+               if (l < quantity) return false;
+               if (level.compareAndSet(l, l - quantity)) return true;
+            }
+         }
+
+         /**
+          * Gives back held units.
+          */
+         void giveBack(int quantity) {
+            level.addAndGet(quantity);
+         }
+
+         /**
+          * Turns held units into a decrement to write.
+          */
+         void commit(int quantity) {
+            unflushed.addAndGet(-quantity);
+         }
+
+         /**
+          * Adds units (negative to remove).
+          * @return the new level
+          */
+         int add(int quantity) {
+            unflushed.addAndGet(quantity);
+            return level.addAndGet(quantity);
+         }
+
+         /**
+          * @return the change not written yet, which is now taken to be
+          */
+         int drain() {
+            return unflushed.getAndSet(0);
+         }
+
+         /**
+          * Puts back a drained change that failed to write.
+          */
+         void undrain(int delta) {
+            unflushed.addAndGet(delta);
+         }
+
+         /**
+          * Notes a drained change that was written.
+          */
+         void written(int delta) {
+            expected += delta;
+         }
+
+         /**
+          * Moves the level by what the database changed beyond this
+          * client's writes.
+          */
+         void sync(int stored) {
+            level.addAndGet(stored - expected);
+            expected = stored;
+         }
+      }
+
+      /**
+       * Stock held for an order that has not been placed yet.
+       */
+      static final class Reservation {
+         final Stock stock;
+         final int quantity;
+
+         Reservation(Stock stock, int quantity) {
+            this.stock = stock;
+            this.quantity = quantity;
+         }
+      }
+
+      private static final Stock UNTRACKED = new Stock(-1, "", Integer.MAX_VALUE);
+
+      private final ConcurrentHashMap<String, Stock> stock = new ConcurrentHashMap<String, Stock>();
+      private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+      private volatile boolean loaded = false;
+      private volatile String lastError = null;
+
+      final AtomicLong reserved = new AtomicLong();
+      final AtomicLong released = new AtomicLong();
+      final AtomicLong committed = new AtomicLong();
+      final AtomicLong shortages = new AtomicLong();
+      final AtomicLong flushed = new AtomicLong();
+      final AtomicLong syncs = new AtomicLong();
+      final AtomicLong flushFailures = new AtomicLong();
+
+      private static String key(int storeID, String itemName) {
+         return storeID + "/" + itemName.trim();
+      }
+
+      /**
+       * Loads rows of (storeID, itemName, stock), syncing counters that
+       * already exist.
+       */
+      synchronized void load(List<List<String>> rows) {
+         for (List<String> row : rows) {
+            int storeID = Integer.parseInt(row.get(0).trim());
+            String itemName = row.get(1).trim();
+            int level = Integer.parseInt(row.get(2).trim());
+            Stock fresh = new Stock(storeID, itemName, level);
+            Stock s = stock.putIfAbsent(key(storeID, itemName), fresh);
+            if (s != null) s.sync(level);
+         }
+         loaded = true;
+      }
+
+      /**
+       * Reads every level from the primary and syncs the counters to it.
+       */
+      void sync(PizzaStore db) throws SQLException {
+         load(db.executeQueryOnPrimary(QueryClass.REPORT, "SELECT storeID, itemName, stock FROM Inventory;"));
+         syncs.incrementAndGet();
+      }
+
+      private Stock lookup(PizzaStore esql, int storeID, String itemName) throws SQLException {
+         Stock s = stock.get(key(storeID, itemName));
+         if (s != null) return s;
+         if (loaded) return UNTRACKED;
+         List<List<String>> rows;
+         try {
+            rows = esql.executeQueryAndReturnResult(String.format(
+               "SELECT stock FROM Inventory WHERE storeID = %d AND itemName = '%s';", storeID, itemName.trim()));
+         } catch (SQLException e) {
+            // most likely no Inventory table yet, so nothing is tracked
+            return UNTRACKED;
+         }
+         // not remembered, the load may still bring a row
+         if (rows.isEmpty()) return UNTRACKED;
+         s = new Stock(storeID, itemName.trim(), Integer.parseInt(rows.get(0).get(0).trim()));
+         Stock raced = stock.putIfAbsent(key(storeID, itemName), s);
+         return raced != null ? raced : s;
+      }
+
+      /**
+       * Takes quantity of an item at a store for an order being built.
+       * @return the reservation, or null when there isn't enough stock
+       */
+      Reservation reserve(PizzaStore esql, int storeID, String itemName, int quantity) throws SQLException {
+         Stock s = lookup(esql, storeID, itemName);
+         if (s == UNTRACKED || quantity <= 0) return new Reservation(null, 0);
+         if (!s.take(quantity)) {
+            shortages.incrementAndGet();
+            return null;
+         }
+         reserved.addAndGet(quantity);
+         return new Reservation(s, quantity);
+      }
+
+      /**
+       * Gives back the stock of an order that was abandoned or failed.
+       */
+      void release(List<Reservation> reservations) {
+         for (Reservation r : reservations) {
+            if (r.stock == null) continue;
+            r.stock.giveBack(r.quantity);
+            released.addAndGet(r.quantity);
+         }
+      }
+
+      /**
+       * Queues the decrements of an order that was written.
+       */
+      void commit(List<Reservation> reservations) {
+         for (Reservation r : reservations) {
+            if (r.stock == null) continue;
+            r.stock.commit(r.quantity);
+            dirty.add(key(r.stock.storeID, r.stock.itemName));
+            committed.addAndGet(r.quantity);
+         }
+      }
+
+      /**
+       * @return units of an item left at a store, Integer.MAX_VALUE when
+       *         it isn't tracked
+       */
+      int available(int storeID, String itemName) {
+         Stock s = stock.get(key(storeID, itemName));
+         return s == null ? Integer.MAX_VALUE : s.level();
+      }
+
+      /**
+       * Adds stock (negative to remove), tracking the item if it wasn't.
+       * @return the new level
+       */
+      int restock(PizzaStore esql, int storeID, String itemName, int quantity) throws SQLException {
+         Stock s = lookup(esql, storeID, itemName);
+         final String name = itemName.trim();
+         if (s == UNTRACKED)
+            s = stock.computeIfAbsent(key(storeID, name), k -> new Stock(storeID, name, 0));
+         int level = s.add(quantity);
+         dirty.add(key(storeID, name));
+         return level;
+      }
+
+      /**
+       * Writes the pending changes, -Dpizzastore.inventory.batchSize rows
+       * per statement. Changes that fail to write are kept for the next try.
+       */
+      synchronized void flush(PizzaStore db) throws SQLException {
+         int batchSize = config("inventory.batchSize", 100);
+         List<Stock> batch = new ArrayList<Stock>();
+         List<Integer> deltas = new ArrayList<Integer>();
+         for (String k : new ArrayList<String>(dirty)) {
+            // off the dirty set first, so a change made meanwhile marks it again
+            dirty.remove(k);
+            Stock s = stock.get(k);
+            if (s == null) continue;
+            int delta = s.drain();
+            if (delta == 0) continue;
+            batch.add(s);
+            deltas.add(delta);
+         }
+         for (int from = 0; from < batch.size(); from += batchSize) {
+            int to = Math.min(batch.size(), from + batchSize);
+            StringBuilder values = new StringBuilder();
+            for (int i = from; i < to; i++) {
+               Stock s = batch.get(i);
+               if (i > from) values.append(", ");
+               values.append(String.format("(%d, '%s', %d)", s.storeID, s.itemName.replace("'", "''"), deltas.get(i)));
+            }
+            try {
+               db.executeUpdate(String.format(
+                  "INSERT INTO Inventory AS i (storeID, itemName, stock) VALUES %s " +
+                  "ON CONFLICT (storeID, itemName) DO UPDATE SET stock = i.stock + EXCLUDED.stock;", values));
+               for (int i = from; i < to; i++)
+                  batch.get(i).written(deltas.get(i));
+               flushed.addAndGet(to - from);
+            } catch (SQLException e) {
+               // put back everything not written yet
+               for (int i = from; i < batch.size(); i++) {
+                  Stock s = batch.get(i);
+                  s.undrain(deltas.get(i));
+                  dirty.add(key(s.storeID, s.itemName));
+               }
+               throw e;
+            }
+         }
+      }
+
+      /**
+       * Flushes, logging instead of throwing; for shutdown.
+       */
+      void flushQuietly(PizzaStore db) {
+         if (dirty.isEmpty()) return;
+         try {
+            flush(db);
+         } catch (SQLException e) {
+            System.err.println("Could not save inventory changes: " + e.getMessage());
+         }
+      }
+
+      /**
+       * Starts the background flusher on its own handle. Every interval it
+       * writes the pending changes and then syncs with the database.
+       */
+      void startFlusher(PizzaStore esql) {
+         final PizzaStore db = esql.newHandle();
+         final long interval = config("inventory.flushMillis", 1000);
+         Thread t = new Thread(() -> {
+            while (true) {
+               try {
+                  Thread.sleep(interval);
+               } catch (InterruptedException e) {
+                  return;
+               }
+               try {
+                  if (!dirty.isEmpty()) flush(db);
+                  sync(db);
+               } catch (SQLException e) {
+                  flushFailures.incrementAndGet();
+                  lastError = e.getMessage();
+               }
+            }
+         }, "inventory-flusher");
+         t.setDaemon(true);
+         t.start();
+      }
+
+      String describe() {
+         return String.format("Inventory\n\t%d items tracked%s, %d pending writes; reserved %d, released %d, committed %d, %d shortages; %d rows written, %d syncs, %d failed flushes%s\n",
+            stock.size(), loaded ? "" : " (still loading)", dirty.size(), reserved.get(), released.get(), committed.get(), shortages.get(),
+            flushed.get(), syncs.get(), flushFailures.get(), lastError == null ? "" : ", last error: " + lastError);
+      }
+   }//end Inventory
+
 }//end PizzaStore
 